@@ -6,7 +6,10 @@ import java.net.URL;
 
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import com.internetitem.logback.elasticsearch.config.Authentication;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
 import com.internetitem.logback.elasticsearch.config.ElasticsearchProperties;
+import com.internetitem.logback.elasticsearch.config.ExecutionMode;
+import com.internetitem.logback.elasticsearch.config.FileFormat;
 import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
 import com.internetitem.logback.elasticsearch.config.Settings;
 import com.internetitem.logback.elasticsearch.util.ErrorReporter;
@@ -18,6 +21,8 @@ public abstract class AbstractElasticsearchAppender<T> extends UnsynchronizedApp
     protected AbstractElasticsearchPublisher<T> publisher;
     protected ErrorReporter errorReporter;
 	protected HttpRequestHeaders headers;
+	protected HeapPressureMonitor heapPressure;
+	private Thread shutdownHook;
 
 	public AbstractElasticsearchAppender() {
 		this.settings = new Settings();
@@ -37,6 +42,38 @@ public abstract class AbstractElasticsearchAppender<T> extends UnsynchronizedApp
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		if (settings.getHeapPressureThreshold() > 0) {
+			heapPressure = new HeapPressureMonitor(errorReporter, settings, publisher);
+			publisher.setHeapPressureMonitor(heapPressure);
+			heapPressure.start();
+		}
+		if (settings.isRegisterShutdownHook()) {
+			shutdownHook = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					AbstractElasticsearchAppender.this.stop();
+				}
+			}, "es-shutdown-hook");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+	}
+
+	/**
+	 * Block until all events appended so far have been delivered, or until the timeout expires.
+	 *
+	 * @param timeout maximum time to wait (in ms)
+	 * @return true if everything was delivered within the timeout (and nothing appended since the previous flush was
+	 * dropped because maxQueueSize was exceeded)
+	 */
+	public boolean flush(long timeout) {
+		return publisher == null || publisher.flush(timeout);
+	}
+
+	/**
+	 * @return the heap pressure monitor (for its mode and counters), or null if heapPressureThreshold isn't set
+	 */
+	public HeapPressureMonitor getHeapPressureMonitor() {
+		return heapPressure;
 	}
 
     protected void publishEvent(T eventObject) {
@@ -53,7 +90,32 @@ public abstract class AbstractElasticsearchAppender<T> extends UnsynchronizedApp
 
     @Override
 	public void stop() {
+		if (!isStarted()) {
+			return;
+		}
 		super.stop();
+		removeShutdownHook();
+		if (heapPressure != null) {
+			heapPressure.stop();
+			heapPressure = null;
+		}
+		if (publisher != null) {
+			if (!publisher.flush(settings.getShutdownTimeout())) {
+				errorReporter.logWarning("Not all log events could be delivered - either shutdownTimeout (" + settings.getShutdownTimeout() + "ms) expired and remaining events will be lost, or some were dropped earlier because maxQueueSize was exceeded");
+			}
+			publisher.close();
+		}
+	}
+
+	private void removeShutdownHook() {
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// JVM is already shutting down
+			}
+		}
+		shutdownHook = null;
 	}
 
 	@Override
@@ -107,10 +169,45 @@ public abstract class AbstractElasticsearchAppender<T> extends UnsynchronizedApp
 		settings.setType(type);
 	}
 
+	public void setRouting(String routing) {
+		settings.setRouting(routing);
+	}
+
+	public void setPipeline(String pipeline) {
+		settings.setPipeline(pipeline);
+	}
+
+	public void setOpType(String opType) {
+		settings.setOpType(opType);
+	}
+
+	public void setDocumentId(String documentId) {
+		settings.setDocumentId(documentId);
+	}
+
+	public void setGenerateDocumentIds(boolean generateDocumentIds) {
+		settings.setGenerateDocumentIds(generateDocumentIds);
+	}
+
+	public void setSortByRouting(boolean sortByRouting) {
+		settings.setSortByRouting(sortByRouting);
+	}
+
 	public void setUrl(String url) throws MalformedURLException {
 		settings.setUrl(new URL(url));
 	}
 
+	/**
+	 * @param urls comma-separated list of additional node URLs to spread bulk requests across
+	 */
+	public void setUrls(String urls) throws MalformedURLException {
+		for (String url : urls.split(",")) {
+			if (!url.trim().isEmpty()) {
+				settings.addUrl(new URL(url.trim()));
+			}
+		}
+	}
+
 	public void setLoggerName(String logger) {
 		settings.setLoggerName(logger);
 	}
@@ -127,6 +224,10 @@ public abstract class AbstractElasticsearchAppender<T> extends UnsynchronizedApp
 			settings.setRawJsonMessage(rawJsonMessage);
 	}
 
+	public void setRawJsonFallbackField(String rawJsonFallbackField) {
+		settings.setRawJsonFallbackField(rawJsonFallbackField);
+	}
+
 	public void setIncludeMdc(boolean includeMdc) {
 		settings.setIncludeMdc(includeMdc);
 	}
@@ -138,4 +239,132 @@ public abstract class AbstractElasticsearchAppender<T> extends UnsynchronizedApp
     public void setMaxMessageSize(int maxMessageSize) {
     	settings.setMaxMessageSize(maxMessageSize);
 	}
+
+	public void setShutdownTimeout(int shutdownTimeout) {
+		settings.setShutdownTimeout(shutdownTimeout);
+	}
+
+	public void setRegisterShutdownHook(boolean registerShutdownHook) {
+		settings.setRegisterShutdownHook(registerShutdownHook);
+	}
+
+	public void setNodePenaltyTime(int nodePenaltyTime) {
+		settings.setNodePenaltyTime(nodePenaltyTime);
+	}
+
+	public void setDiscoverNodes(boolean discoverNodes) {
+		settings.setDiscoverNodes(discoverNodes);
+	}
+
+	public void setNodeDiscoveryInterval(int nodeDiscoveryInterval) {
+		settings.setNodeDiscoveryInterval(nodeDiscoveryInterval);
+	}
+
+	public void setFile(String file) {
+		settings.setFile(file);
+	}
+
+	public void setFileFormat(String fileFormat) {
+		settings.setFileFormat(FileFormat.valueOf(fileFormat.trim().toUpperCase()));
+	}
+
+	public void setMaxFileSize(long maxFileSize) {
+		settings.setMaxFileSize(maxFileSize);
+	}
+
+	public void setFileRolloverInterval(long fileRolloverInterval) {
+		settings.setFileRolloverInterval(fileRolloverInterval);
+	}
+
+	public void setFileSyncInterval(int fileSyncInterval) {
+		settings.setFileSyncInterval(fileSyncInterval);
+	}
+
+	public void setStreamingUpload(boolean streamingUpload) {
+		settings.setStreamingUpload(streamingUpload);
+	}
+
+	public void setStreamingChunkSize(int streamingChunkSize) {
+		settings.setStreamingChunkSize(streamingChunkSize);
+	}
+
+	public void setFormat(String format) {
+		settings.setFormat(BulkFormat.valueOf(format.trim().toUpperCase()));
+	}
+
+	public void setMaxFieldSize(int maxFieldSize) {
+		settings.setMaxFieldSize(maxFieldSize);
+	}
+
+	public void setMaxDocumentSize(int maxDocumentSize) {
+		settings.setMaxDocumentSize(maxDocumentSize);
+	}
+
+	public void setTruncationMarker(String truncationMarker) {
+		settings.setTruncationMarker(truncationMarker);
+	}
+
+	public void setExecutionMode(String executionMode) {
+		settings.setExecutionMode(ExecutionMode.valueOf(executionMode.trim().toUpperCase()));
+	}
+
+	public void setAdaptiveBatching(boolean adaptiveBatching) {
+		settings.setAdaptiveBatching(adaptiveBatching);
+	}
+
+	public void setMinBatchSize(int minBatchSize) {
+		settings.setMinBatchSize(minBatchSize);
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		settings.setMaxBatchSize(maxBatchSize);
+	}
+
+	public void setMaxConcurrency(int maxConcurrency) {
+		settings.setMaxConcurrency(maxConcurrency);
+	}
+
+	public void setSerializationThreads(int serializationThreads) {
+		settings.setSerializationThreads(serializationThreads);
+	}
+
+	public void setSerializationSliceSize(int serializationSliceSize) {
+		settings.setSerializationSliceSize(serializationSliceSize);
+	}
+
+	public void setHeapPressureThreshold(int heapPressureThreshold) {
+		settings.setHeapPressureThreshold(heapPressureThreshold);
+	}
+
+	public void setHeapPressureRecovery(int heapPressureRecovery) {
+		settings.setHeapPressureRecovery(heapPressureRecovery);
+	}
+
+	public void setTargetLatency(long targetLatency) {
+		settings.setTargetLatency(targetLatency);
+	}
+
+	public void setSharedTransport(boolean sharedTransport) {
+		settings.setSharedTransport(sharedTransport);
+	}
+
+	public void setBufferSegmentSize(int bufferSegmentSize) {
+		settings.setBufferSegmentSize(bufferSegmentSize);
+	}
+
+	public void setDirectBuffers(boolean directBuffers) {
+		settings.setDirectBuffers(directBuffers);
+	}
+
+	public void setBufferPoolSize(int bufferPoolSize) {
+		settings.setBufferPoolSize(bufferPoolSize);
+	}
+
+	public void setBufferIdleTimeout(long bufferIdleTimeout) {
+		settings.setBufferIdleTimeout(bufferIdleTimeout);
+	}
+
+	public void setDeadLetterFile(String deadLetterFile) {
+		settings.setDeadLetterFile(deadLetterFile);
+	}
 }
@@ -1,29 +1,60 @@
 package com.internetitem.logback.elasticsearch;
 
 import ch.qos.logback.core.Context;
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.internetitem.logback.elasticsearch.config.Authentication;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
 import com.internetitem.logback.elasticsearch.config.ElasticsearchProperties;
+import com.internetitem.logback.elasticsearch.config.HeaderAuthentication;
 import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
+import com.internetitem.logback.elasticsearch.config.PayloadSigningAuthentication;
 import com.internetitem.logback.elasticsearch.config.Property;
 import com.internetitem.logback.elasticsearch.config.Settings;
 import com.internetitem.logback.elasticsearch.util.AbstractPropertyAndEncoder;
+import com.internetitem.logback.elasticsearch.util.CountingOutputStream;
+import com.internetitem.logback.elasticsearch.util.DocumentIds;
 import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.SmileSupport;
+import com.internetitem.logback.elasticsearch.util.WorkerThreadFactory;
+import com.internetitem.logback.elasticsearch.writer.AdaptiveBatchController;
+import com.internetitem.logback.elasticsearch.writer.ElasticsearchNodes;
 import com.internetitem.logback.elasticsearch.writer.ElasticsearchWriter;
 import com.internetitem.logback.elasticsearch.writer.LoggerWriter;
+import com.internetitem.logback.elasticsearch.writer.RollingFileWriter;
+import com.internetitem.logback.elasticsearch.writer.SafeWriter;
 import com.internetitem.logback.elasticsearch.writer.StdErrWriter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-public abstract class AbstractElasticsearchPublisher<T> implements Runnable {
+public abstract class AbstractElasticsearchPublisher<T> implements Runnable, HeapPressureMonitor.Listener {
 
 	private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(1);
+	private static final AtomicInteger SERIALIZER_THREAD_COUNTER = new AtomicInteger(1);
 	private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat> () {
 		@Override
 		protected DateFormat initialValue() {
@@ -32,56 +63,153 @@ public abstract class AbstractElasticsearchPublisher<T> implements Runnable {
 	};
 
 	public static final String THREAD_NAME_PREFIX = "es-writer-";
+	public static final String SERIALIZER_THREAD_NAME_PREFIX = "es-serializer-";
+
+	private static final String OP_TYPE_INDEX = "index";
+	private static final String OP_TYPE_CREATE = "create";
+	private static final int SLICE_BUFFER_SIZE = 64 * 1024;
 
 
 	private volatile List<T> events;
 	private ElasticsearchOutputAggregator outputAggregator;
+	private ElasticsearchWriter elasticsearchWriter;
+	private ElasticsearchWriter streamingWriter;
+	private ElasticsearchWriter priorityWriter;
+	private boolean prioritized;
 	private List<AbstractPropertyAndEncoder<T>> propertyList;
 
 	private AbstractPropertyAndEncoder<T> indexPattern;
+	private AbstractPropertyAndEncoder<T> routingPattern;
+	private AbstractPropertyAndEncoder<T> pipelinePattern;
+	private AbstractPropertyAndEncoder<T> opTypePattern;
+	private AbstractPropertyAndEncoder<T> documentIdPattern;
+	private boolean generateDocumentIds;
+	private BulkFormat format;
 	private JsonFactory jf;
-	private JsonGenerator jsonGenerator;
+	private JsonFactory textFactory;
 
-	private ErrorReporter errorReporter;
+	protected ErrorReporter errorReporter;
 	protected Settings settings;
 
-	private final Object lock;
+	private final WorkerThreadFactory threadFactory;
+
+	// A Lock rather than a monitor, so that waiting doesn't pin a virtual thread to its carrier
+	private final ReentrantLock lock;
+	private final Condition changed;
 
 	private volatile boolean working;
 
-	private final PropertySerializer propertySerializer;
+	// Sequence counters used by flush(); all guarded by lock
+	private long enqueuedCount;
+	private long dispatchedCount;
+	private long flushedCount;
+	private boolean flushRequested;
+
+	private final PropertySerializer<T> propertySerializer;
+	private final ForkJoinPool serializationPool;
+	private volatile HeapPressureMonitor heapPressure;
 
 	public AbstractElasticsearchPublisher(Context context, ErrorReporter errorReporter, Settings settings, ElasticsearchProperties properties, HttpRequestHeaders headers) throws IOException {
 		this.errorReporter = errorReporter;
 		this.events = new ArrayList<T>();
-		this.lock = new Object();
+		this.lock = new ReentrantLock();
+		this.changed = lock.newCondition();
 		this.settings = settings;
+		this.threadFactory = new WorkerThreadFactory(settings.getExecutionMode(), errorReporter);
+
+		checkFormat(settings, errorReporter);
+		boolean streaming = isStreaming(settings, errorReporter);
+		SafeWriter bufferedWriter = null;
+		if (settings.getUrls().isEmpty()) {
+			this.elasticsearchWriter = null;
+		} else if (settings.isSharedTransport() && !streaming) {
+			SharedTransport.SharedWriter sharedWriter = SharedTransport.acquire(settings, headers, errorReporter, threadFactory);
+			this.elasticsearchWriter = sharedWriter.getTransport().getWriter();
+			bufferedWriter = sharedWriter;
+		} else {
+			this.elasticsearchWriter = new ElasticsearchWriter(errorReporter, settings, headers, threadFactory);
+			bufferedWriter = streaming ? null : elasticsearchWriter;
+		}
+		this.prioritized = settings.getPriorityLevel() != null || settings.getPriorityMarker() != null;
+		this.priorityWriter = prioritized && bufferedWriter != null ? new ElasticsearchWriter(elasticsearchWriter) : null;
+		this.outputAggregator = configureOutputAggregator(settings, errorReporter, threadFactory, bufferedWriter, priorityWriter);
+		this.streamingWriter = streaming ? elasticsearchWriter : null;
 
-		this.outputAggregator = configureOutputAggregator(settings, errorReporter, headers);
-
-		this.jf = new JsonFactory();
-		this.jf.setRootValueSeparator(null);
-		this.jsonGenerator = jf.createGenerator(outputAggregator);
+		this.format = settings.getFormat();
+		this.textFactory = new JsonFactory();
+		this.textFactory.setRootValueSeparator(null);
+		this.textFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		this.jf = format == BulkFormat.SMILE ? SmileSupport.getFactory() : textFactory;
 
 		this.indexPattern = buildPropertyAndEncoder(context, new Property("<index>", settings.getIndex(), false));
+		this.routingPattern = buildOptionalPattern(context, "<routing>", settings.getRouting());
+		this.pipelinePattern = buildOptionalPattern(context, "<pipeline>", settings.getPipeline());
+		this.opTypePattern = buildOptionalPattern(context, "<opType>", settings.getOpType());
+		this.documentIdPattern = buildOptionalPattern(context, "<documentId>", settings.getDocumentId());
+		this.generateDocumentIds = settings.isGenerateDocumentIds();
 		this.propertyList = generatePropertyList(context, properties);
 
-		this.propertySerializer = new PropertySerializer();
+		this.propertySerializer = new PropertySerializer<T>(settings);
+		this.serializationPool = settings.getSerializationThreads() > 1 ? createSerializationPool(settings.getSerializationThreads()) : null;
+	}
+
+	private static ForkJoinPool createSerializationPool(int threads) {
+		return new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName(SERIALIZER_THREAD_NAME_PREFIX + SERIALIZER_THREAD_COUNTER.getAndIncrement());
+				return thread;
+			}
+		}, null, false);
+	}
+
+	// Authentication schemes that predate SMILE are handed the payload as a String, which a SMILE payload can't be
+	private static void checkFormat(Settings settings, ErrorReporter errorReporter) {
+		Authentication authentication = settings.getAuthentication();
+		if (settings.getFormat() == BulkFormat.SMILE && authentication != null && !(authentication instanceof HeaderAuthentication) && !(authentication instanceof PayloadSigningAuthentication)) {
+			errorReporter.logWarning("format smile can not be used with " + authentication.getClass().getSimpleName() + " (it needs the payload as text) - falling back to json");
+			settings.setFormat(BulkFormat.JSON);
+		}
+	}
+
+	private static boolean isStreaming(Settings settings, ErrorReporter errorReporter) {
+		if (!settings.isStreamingUpload() || settings.getUrls().isEmpty()) {
+			return false;
+		}
+		Authentication authentication = settings.getAuthentication();
+		if (authentication instanceof PayloadSigningAuthentication) {
+			errorReporter.logWarning("streamingUpload can not be used with " + authentication.getClass().getSimpleName() + " (the payload hash must be known before sending) - falling back to buffered uploads");
+			return false;
+		}
+		if (authentication != null && !(authentication instanceof HeaderAuthentication)) {
+			errorReporter.logWarning("streamingUpload can not be used with " + authentication.getClass().getSimpleName() + " (it needs the whole payload before sending) - falling back to buffered uploads");
+			return false;
+		}
+		return true;
 	}
 
-	private static ElasticsearchOutputAggregator configureOutputAggregator(Settings settings, ErrorReporter errorReporter, HttpRequestHeaders httpRequestHeaders)  {
-		ElasticsearchOutputAggregator spigot = new ElasticsearchOutputAggregator(settings, errorReporter);
+	private static ElasticsearchOutputAggregator configureOutputAggregator(Settings settings, ErrorReporter errorReporter, WorkerThreadFactory threadFactory, SafeWriter bufferedWriter, SafeWriter priorityWriter)  {
+		ElasticsearchOutputAggregator spigot = new ElasticsearchOutputAggregator(settings, errorReporter, threadFactory);
 
 		if (settings.isLogsToStderr()) {
-			spigot.addWriter(new StdErrWriter());
+			spigot.addWriter(new StdErrWriter(settings.getFormat()));
 		}
 
 		if (settings.getLoggerName() != null) {
-			spigot.addWriter(new LoggerWriter(settings.getLoggerName()));
+			spigot.addWriter(new LoggerWriter(settings.getLoggerName(), settings.getFormat()));
+		}
+
+		if (settings.getFile() != null) {
+			spigot.addWriter(new RollingFileWriter(errorReporter, settings));
 		}
 
-		if (settings.getUrl() != null) {
-			spigot.addWriter(new ElasticsearchWriter(errorReporter, settings, httpRequestHeaders));
+		// Priority events get a send buffer (and requests) of their own, so they never wait behind a large bulk request
+		if (priorityWriter != null) {
+			spigot.addWriter(bufferedWriter, ElasticsearchOutputAggregator.Lane.NORMAL);
+			spigot.addWriter(priorityWriter, ElasticsearchOutputAggregator.Lane.PRIORITY);
+		} else if (bufferedWriter != null) {
+			spigot.addWriter(bufferedWriter);
 		}
 
 		return spigot;
@@ -97,95 +225,667 @@ public abstract class AbstractElasticsearchPublisher<T> implements Runnable {
 		return list;
 	}
 
+	private AbstractPropertyAndEncoder<T> buildOptionalPattern(Context context, String name, String pattern) {
+		if (pattern == null || pattern.trim().isEmpty()) {
+			return null;
+		}
+		return buildPropertyAndEncoder(context, new Property(name, pattern, false));
+	}
+
 	protected abstract AbstractPropertyAndEncoder<T> buildPropertyAndEncoder(Context context, Property property);
 
+	protected AbstractPropertyAndEncoder<T> getIndexPattern(T event) {
+		return indexPattern;
+	}
+
+	public void setHeapPressureMonitor(HeapPressureMonitor heapPressure) {
+		this.heapPressure = heapPressure;
+	}
+
+	@Override
+	public void onHeapPressure(HeapPressureMonitor.Mode mode) {
+		boolean pooling = !mode.isAtLeast(HeapPressureMonitor.Mode.RELEASE_BUFFERS);
+		if (elasticsearchWriter != null) {
+			elasticsearchWriter.setBufferPooling(pooling);
+		}
+		if (priorityWriter != null) {
+			priorityWriter.setBufferPooling(pooling);
+		}
+	}
+
+	/**
+	 * @return true if the event should be sent right away, in requests of its own (see priorityLevel)
+	 */
+	protected boolean isPriority(T event) {
+		return false;
+	}
+
+	/**
+	 * @return true if the event may be dropped when the heap is short (see heapPressureThreshold)
+	 */
+	protected boolean isLowPriority(T event) {
+		return false;
+	}
+
 	public void addEvent(T event) {
-		if (!outputAggregator.hasOutputs()) {
+		if (!outputAggregator.hasOutputs() && streamingWriter == null) {
 			return;
 		}
 
-		synchronized (lock) {
+		lock.lock();
+		try {
 			events.add(event);
+			enqueuedCount++;
 			if (!working) {
-				working = true;
-				Thread thread = new Thread(this, THREAD_NAME_PREFIX + THREAD_COUNTER.getAndIncrement());
-				thread.start();
+				startWorker();
 			}
+			if (prioritized && isPriority(event)) {
+				// Don't wait for sleepTime
+				flushRequested = true;
+				changed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Block until every event added before this call has been delivered to all outputs, or until the timeout expires.
+	 * An output that has given up after maxRetries is restarted, so delivery keeps being attempted until the deadline.
+	 *
+	 * @param timeout maximum time to wait (in ms)
+	 * @return true if everything was delivered, false if the timeout expired first or if an output dropped any of the
+	 * events added since the previous flush because its queue exceeded maxQueueSize
+	 */
+	public boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		long target;
+		long from;
+		lock.lock();
+		try {
+			target = enqueuedCount;
+			from = flushedCount;
+			while (dispatchedCount < target) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				flushRequested = true;
+				if (!working) {
+					startWorker();
+				}
+				changed.signalAll();
+				try {
+					changed.await(remaining, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		boolean delivered = outputAggregator.awaitDelivered(target, deadline);
+		boolean lost = outputAggregator.isLost(from, target);
+		if (delivered) {
+			lock.lock();
+			try {
+				flushedCount = Math.max(flushedCount, target);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return delivered && !lost;
+	}
+
+	public List<WriterPipeline> getPipelines() {
+		return outputAggregator.getPipelines();
+	}
+
+	/**
+	 * @return number of field values that were truncated to fit maxMessageSize, maxFieldSize or maxDocumentSize
+	 */
+	public long getTruncatedFieldCount() {
+		return propertySerializer.getTruncatedCount();
+	}
+
+	/**
+	 * @return number of fields that were left out entirely because they didn't fit into maxDocumentSize
+	 */
+	public long getDroppedFieldCount() {
+		return propertySerializer.getDroppedCount();
+	}
+
+	/**
+	 * @return current batch size and concurrency for sending to Elasticsearch, or null if there are no urls
+	 */
+	public AdaptiveBatchController getBatchController() {
+		return elasticsearchWriter != null ? elasticsearchWriter.getController() : null;
+	}
+
+	/**
+	 * Release any resources held by the outputs (e.g. open files). Should be called after the final flush.
+	 */
+	public void close() {
+		if (serializationPool != null) {
+			serializationPool.shutdown();
+		}
+		try {
+			outputAggregator.close();
+			if (streamingWriter != null) {
+				streamingWriter.close();
+			}
+		} catch (IOException e) {
+			errorReporter.logWarning("Failed to close outputs: " + e.getMessage());
+		}
+	}
+
+	// Must be called while holding lock
+	private void startWorker() {
+		working = true;
+		Thread thread = threadFactory.newThread(this, THREAD_NAME_PREFIX + THREAD_COUNTER.getAndIncrement());
+		thread.start();
+	}
+
+	// Serialized once, in order, for the outputs that take all events; only the Elasticsearch lanes get split
+	private void dispatchByLane(List<T> eventsCopy, long drainedUpTo) throws IOException {
+		List<T> written = serializeEvents(outputAggregator, eventsCopy, generateDocumentIds(eventsCopy), propertyList);
+		boolean[] priority = new boolean[written.size()];
+		for (int i = 0; i < priority.length; i++) {
+			priority[i] = isPriority(written.get(i));
+		}
+		outputAggregator.dispatch(drainedUpTo, priority);
+	}
+
+	// Queued events are dropped here rather than taken out of the queue, so that they still count as dispatched for flush()
+	private List<T> shedLowPriority(List<T> eventsCopy) {
+		HeapPressureMonitor monitor = heapPressure;
+		if (monitor == null || !monitor.getMode().isAtLeast(HeapPressureMonitor.Mode.DROP_LOW_LEVELS)) {
+			return eventsCopy;
+		}
+		List<T> kept = new ArrayList<T>(eventsCopy.size());
+		for (T event : eventsCopy) {
+			if (!isLowPriority(event)) {
+				kept.add(event);
+			}
+		}
+		monitor.addShed(eventsCopy.size() - kept.size());
+		return kept;
+	}
+
+	private void waitForWork() throws InterruptedException {
+		lock.lock();
+		try {
+			if (!flushRequested) {
+				changed.await(settings.getSleepTime(), TimeUnit.MILLISECONDS);
+			}
+			flushRequested = false;
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	public void run() {
-		int currentTry = 1;
-		int maxRetries = settings.getMaxRetries();
 		while (true) {
+			List<T> eventsCopy;
+			long drainedUpTo;
 			try {
-				Thread.sleep(settings.getSleepTime());
-
-				List<T> eventsCopy = null;
-				synchronized (lock) {
-					if (!events.isEmpty()) {
-						eventsCopy = events;
-						events = new ArrayList<T>();
-						currentTry = 1;
-					}
+				waitForWork();
+			} catch (InterruptedException e) {
+				errorReporter.logError("Internal error handling log data: " + e.getMessage(), e);
+			}
+
+			lock.lock();
+			try {
+				if (events.isEmpty()) {
+					// all done
+					working = false;
+					changed.signalAll();
+					return;
+				}
+				eventsCopy = events;
+				events = new ArrayList<T>();
+				drainedUpTo = enqueuedCount;
+			} finally {
+				lock.unlock();
+			}
+			eventsCopy = shedLowPriority(eventsCopy);
+
+			try {
+				if (streamingWriter != null && !eventsCopy.isEmpty()) {
+					streamEvents(eventsCopy, drainedUpTo);
+				} else if (priorityWriter != null) {
+					dispatchByLane(eventsCopy, drainedUpTo);
+				} else {
+					serializeEvents(outputAggregator, eventsCopy, propertyList);
+					outputAggregator.dispatch(drainedUpTo);
+				}
+			} catch (Exception e) {
+				errorReporter.logError("Internal error handling log data: " + e.getMessage(), e);
+				// The batch may end in the middle of a document
+				outputAggregator.discard();
+			} finally {
+				lock.lock();
+				try {
+					dispatchedCount = drainedUpTo;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serialize the events straight into an open bulk request, so that serialization and network transfer overlap and
+	 * only a chunk of the body is ever held in memory. Since nothing is buffered, a failed request is retried by
+	 * serializing the events again (on another node, if there is one), or in two halves if it was too large (413).
+	 * Documents that failed by themselves (e.g. were throttled) are sent again the same way, without the rest. Any
+	 * other outputs are fed from the first attempt.
+	 */
+	private void streamEvents(List<T> eventsCopy, long drainedUpTo) throws IOException {
+		// Generated once, so that every attempt sends the same IDs (and a resend after a timeout only causes conflicts)
+		streamEvents(eventsCopy, generateDocumentIds(eventsCopy), drainedUpTo, !outputAggregator.hasOutputs());
+	}
+
+	// Returns whether Elasticsearch accepted the events in one request
+	private boolean streamEvents(List<T> eventsCopy, String[] ids, long drainedUpTo, boolean dispatched) throws IOException {
+		List<ElasticsearchNodes.Node> tried = new ArrayList<ElasticsearchNodes.Node>();
+		int maxRetries = Math.max(settings.getMaxRetries(), 1);
+		for (int attempt = 1; ; attempt++) {
+			if (tried.size() >= streamingWriter.getNodes().getNodes().size()) {
+				tried.clear();
+			}
+
+			ElasticsearchWriter.StreamingRequest request = null;
+			IOException error = null;
+			try {
+				request = streamingWriter.openStreamingRequest(tried);
+				tried.add(request.getNode());
+			} catch (IOException e) {
+				error = e;
+			}
 
-					if (eventsCopy == null) {
-						if (!outputAggregator.hasPendingData()) {
-							// all done
-							working = false;
-							return;
-						} else {
-							// Nothing new, must be a retry
-							if (currentTry > maxRetries) {
-								// Oh well, better luck next time
-								working = false;
-								return;
+			if (request != null || !dispatched) {
+				TeeOutputStream tee = new TeeOutputStream(dispatched ? null : outputAggregator, request);
+				try {
+					// From here on in the order they were written (the IDs are reordered along with them), which the
+					// results of the bulk response are in
+					eventsCopy = serializeEvents(tee, eventsCopy, ids, propertyList);
+				} catch (IOException | RuntimeException e) {
+					// Serializing failed (writing to the request doesn't throw, see TeeOutputStream), not the node
+					if (request != null) {
+						request.cancel();
+					}
+					throw e;
+				}
+				if (!dispatched) {
+					outputAggregator.dispatch(drainedUpTo);
+					dispatched = true;
+				}
+				if (request != null) {
+					if (tee.requestError != null) {
+						request.abort();
+						error = tee.requestError;
+					} else {
+						try {
+							BitSet retry = request.finish();
+							if (retry == null) {
+								return true;
+							}
+							// Only the documents that failed by themselves (e.g. were throttled) are sent again
+							List<T> retryEvents = new ArrayList<T>(retry.cardinality());
+							String[] retryIds = ids != null ? new String[retry.cardinality()] : null;
+							for (int i = retry.nextSetBit(0), n = 0; i >= 0; i = retry.nextSetBit(i + 1), n++) {
+								retryEvents.add(eventsCopy.get(i));
+								if (ids != null) {
+									retryIds[n] = ids[i];
+								}
 							}
+							eventsCopy = retryEvents;
+							ids = retryIds;
+							error = new IOException(retry.cardinality() + " documents were not accepted by Elasticsearch and will be sent again");
+						} catch (ElasticsearchWriter.RequestTooLargeException e) {
+							if (eventsCopy.size() > 1) {
+								int middle = eventsCopy.size() / 2;
+								boolean first = streamEvents(eventsCopy.subList(0, middle), ids != null ? Arrays.copyOfRange(ids, 0, middle) : null, drainedUpTo, true);
+								boolean second = streamEvents(eventsCopy.subList(middle, eventsCopy.size()), ids != null ? Arrays.copyOfRange(ids, middle, ids.length) : null, drainedUpTo, true);
+								if (first && second) {
+									// Not while isolating a single event that is too large by itself, see ElasticsearchWriter
+									streamingWriter.getController().onTooLarge(eventsCopy.size());
+								}
+							} else {
+								errorReporter.logError("Elasticsearch rejected an event as too large, dropping it: " + e.getMessage(), e);
+							}
+							return false;
+						} catch (ElasticsearchWriter.RequestRejectedException e) {
+							errorReporter.logError("Elasticsearch rejected bulk request, dropping " + eventsCopy.size() + " events: " + e.getMessage(), e);
+							return false;
+						} catch (IOException e) {
+							error = e;
 						}
 					}
 				}
+			}
+
+			errorReporter.logWarning("Failed to send events to Elasticsearch: " + error.getMessage());
+			if (settings.isErrorsToStderr()) {
+				System.err.println("[" + new Date().toString() + "] Failed to send events to Elasticsearch: " + error.getMessage());
+			}
+			if (attempt >= maxRetries) {
+				errorReporter.logError("Giving up on sending " + eventsCopy.size() + " events to Elasticsearch after " + attempt + " attempts", error);
+				return false;
+			}
+			try {
+				Thread.sleep(Math.max(settings.getSleepTime(), streamingWriter.getController().getRetryDelay()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
 
-				if (eventsCopy != null) {
-					serializeEvents(jsonGenerator, eventsCopy, propertyList);
+	/**
+	 * Writes to the buffered outputs and a streaming request at the same time. A failure of the request is remembered
+	 * (and the request skipped from then on) rather than thrown, so that the buffered outputs still get the whole batch.
+	 */
+	private static class TeeOutputStream extends OutputStream {
+		private final OutputStream buffered;
+		private final OutputStream request;
+		private IOException requestError;
+
+		TeeOutputStream(OutputStream buffered, OutputStream request) {
+			this.buffered = buffered;
+			this.request = request;
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			if (buffered != null) {
+				buffered.write(buf, off, len);
+			}
+			if (request != null && requestError == null) {
+				try {
+					request.write(buf, off, len);
+				} catch (IOException e) {
+					requestError = e;
 				}
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
 
-				if (!outputAggregator.sendData()) {
-					currentTry++;
+		@Override
+		public void flush() throws IOException {
+			if (request != null && requestError == null) {
+				try {
+					request.flush();
+				} catch (IOException e) {
+					requestError = e;
 				}
-			} catch (Exception e) {
-				errorReporter.logError("Internal error handling log data: " + e.getMessage(), e);
-				currentTry++;
 			}
 		}
+
+		@Override
+		public void close() throws IOException {
+			// Closed by the owner of each target
+		}
 	}
 
+	//VisibleForTesting
+	void serializeEvents(OutputStream target, List<T> eventsCopy) throws IOException {
+		serializeEvents(target, eventsCopy, propertyList);
+	}
 
-	private void serializeEvents(JsonGenerator gen, List<T> eventsCopy, List<AbstractPropertyAndEncoder<T>> propertyList) throws IOException {
-		for (T event : eventsCopy) {
-			serializeIndexString(gen, event);
-			gen.writeRaw('\n');
-			serializeEvent(gen, event, propertyList);
+	private void serializeEvents(OutputStream target, List<T> eventsCopy, List<AbstractPropertyAndEncoder<T>> propertyList) throws IOException {
+		serializeEvents(target, eventsCopy, generateDocumentIds(eventsCopy), propertyList);
+	}
+
+	/**
+	 * @param ids generated document IDs, in the same order as the events (and reordered along with them), or null if
+	 *            there are none
+	 * @return the events in the order they were written (which differs with sortByRouting)
+	 */
+	private List<T> serializeEvents(OutputStream target, List<T> eventsCopy, String[] ids, List<AbstractPropertyAndEncoder<T>> propertyList) throws IOException {
+		String[] routings = null;
+		if (routingPattern != null) {
+			routings = new String[eventsCopy.size()];
+			for (int i = 0; i < routings.length; i++) {
+				routings[i] = routingPattern.encode(eventsCopy.get(i));
+			}
+			if (settings.isSortByRouting() && !routingPattern.isConstant()) {
+				eventsCopy = sortByRouting(eventsCopy, routings, ids);
+			}
+		}
+
+		int sliceSize = Math.max(settings.getSerializationSliceSize(), 1);
+		if (serializationPool == null || eventsCopy.size() <= sliceSize) {
+			serializeSlice(target, eventsCopy, routings, ids, 0, eventsCopy.size(), propertyList, propertySerializer);
+		} else {
+			serializeInParallel(target, eventsCopy, routings, ids, sliceSize, propertyList);
+		}
+		return eventsCopy;
+	}
+
+	// The first slice is written straight to the target while the pool serializes the others into buffers of their
+	// own (each with its own generator and PropertySerializer), which are then appended in order
+	private void serializeInParallel(OutputStream target, final List<T> eventsCopy, final String[] routings, final String[] ids, int sliceSize, final List<AbstractPropertyAndEncoder<T>> propertyList) throws IOException {
+		List<ForkJoinTask<ByteArrayOutputStream>> slices = new ArrayList<ForkJoinTask<ByteArrayOutputStream>>();
+		for (int start = sliceSize; start < eventsCopy.size(); start += sliceSize) {
+			final int from = start;
+			final int to = Math.min(start + sliceSize, eventsCopy.size());
+			slices.add(serializationPool.submit(new Callable<ByteArrayOutputStream>() {
+				@Override
+				public ByteArrayOutputStream call() throws IOException {
+					ByteArrayOutputStream slice = new ByteArrayOutputStream(SLICE_BUFFER_SIZE);
+					serializeSlice(slice, eventsCopy, routings, ids, from, to, propertyList, new PropertySerializer<T>(propertySerializer));
+					return slice;
+				}
+			}));
+		}
+
+		boolean done = false;
+		try {
+			serializeSlice(target, eventsCopy, routings, ids, 0, sliceSize, propertyList, propertySerializer);
+			for (ForkJoinTask<ByteArrayOutputStream> slice : slices) {
+				slice.get().writeTo(target);
+			}
+			done = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while serializing events");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Failed to serialize events", e.getCause());
+		} finally {
+			if (!done) {
+				for (ForkJoinTask<ByteArrayOutputStream> slice : slices) {
+					slice.cancel(false);
+				}
+			}
+		}
+	}
+
+	private void serializeSlice(OutputStream target, List<T> eventsCopy, String[] routings, String[] ids, int from, int to, List<AbstractPropertyAndEncoder<T>> propertyList, PropertySerializer<T> propertySerializer) throws IOException {
+		CountingOutputStream out = new CountingOutputStream(target);
+		JsonGenerator gen = null;
+		try {
+			for (int i = from; i < to; i++) {
+				T event = eventsCopy.get(i);
+				gen = startDocument(out, gen);
+				serializeIndexString(gen, event, routings != null ? routings[i] : null, ids != null ? ids[i] : null);
+				endDocument(out, gen);
+				gen = startDocument(out, gen);
+				propertySerializer.startDocument(out, gen);
+				serializeEvent(gen, event, propertyList, propertySerializer);
+				endDocument(out, gen);
+			}
+		} finally {
+			if (gen != null) {
+				gen.close();
+			}
+		}
+		out.flush();
+	}
+
+	// JSON documents share one generator per batch, but every SMILE document needs its own (each starts with a header
+	// and may not refer back to names or values of a previous document)
+	private JsonGenerator startDocument(OutputStream out, JsonGenerator gen) throws IOException {
+		if (gen == null || format == BulkFormat.SMILE) {
+			return jf.createGenerator(out, JsonEncoding.UTF8);
+		}
+		return gen;
+	}
+
+	private void endDocument(OutputStream out, JsonGenerator gen) throws IOException {
+		if (format == BulkFormat.SMILE) {
+			gen.close();
+			out.write(format.getSeparator());
+		} else {
 			gen.writeRaw('\n');
 		}
-		gen.flush();
 	}
 
-	private void serializeIndexString(JsonGenerator gen, T event) throws IOException {
+	/**
+	 * Write a value that is already formatted as JSON, which must have been checked with isSingleJsonValue(). It is
+	 * copied as is, unless the format is SMILE (which has no way to embed JSON text) or it spans several lines (which
+	 * would break up the bulk request), in which case it is parsed and re-encoded instead.
+	 */
+	protected void writeRawJsonValue(JsonGenerator gen, String json) throws IOException {
+		if (format != BulkFormat.SMILE && json.indexOf('\n') < 0 && json.indexOf('\r') < 0) {
+			gen.writeRawValue(json);
+			return;
+		}
+		JsonParser parser = textFactory.createParser(json);
+		try {
+			parser.nextToken();
+			gen.copyCurrentStructure(parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Checked up front, so that invalid input neither leaves a partial value behind in the generator nor makes
+	 * Elasticsearch reject the whole request. Only the structure is parsed, values are skipped over.
+	 */
+	protected boolean isSingleJsonValue(String json) throws IOException {
+		JsonParser parser = textFactory.createParser(json);
+		try {
+			JsonToken token = parser.nextToken();
+			if (token == null) {
+				return false;
+			}
+			parser.skipChildren();
+			return parser.nextToken() == null;
+		} catch (JsonProcessingException e) {
+			return false;
+		} finally {
+			parser.close();
+		}
+	}
+
+	// Stable, so documents with the same routing value keep their order; the routing values (and IDs, if any) are
+	// reordered to match
+	private static <T> List<T> sortByRouting(final List<T> events, final String[] routings, String[] ids) {
+		Integer[] order = new Integer[routings.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return routings[a].compareTo(routings[b]);
+			}
+		});
+		List<T> sorted = new ArrayList<T>(events.size());
+		String[] sortedRoutings = new String[routings.length];
+		for (int i = 0; i < order.length; i++) {
+			sorted.add(events.get(order[i]));
+			sortedRoutings[i] = routings[order[i]];
+		}
+		System.arraycopy(sortedRoutings, 0, routings, 0, routings.length);
+		if (ids != null) {
+			String[] sortedIds = new String[ids.length];
+			for (int i = 0; i < order.length; i++) {
+				sortedIds[i] = ids[order[i]];
+			}
+			System.arraycopy(sortedIds, 0, ids, 0, ids.length);
+		}
+		return sorted;
+	}
+
+	private void serializeIndexString(JsonGenerator gen, T event, String routing, String generatedId) throws IOException {
+		String id = getDocumentId(event, generatedId);
 		gen.writeStartObject();
-		gen.writeObjectFieldStart("index");
-		gen.writeObjectField("_index", indexPattern.encode(event));
+		gen.writeObjectFieldStart(getOpType(event, id != null));
+		gen.writeObjectField("_index", getIndexPattern(event).encode(event));
+		if (id != null) {
+			gen.writeObjectField("_id", id);
+		}
 		String type = settings.getType();
 		if (type != null) {
 			gen.writeObjectField("_type", type);
 		}
+		if (routing != null && !routing.isEmpty()) {
+			gen.writeObjectField("routing", routing);
+		}
+		if (pipelinePattern != null) {
+			String pipeline = pipelinePattern.encode(event);
+			if (!pipeline.isEmpty()) {
+				gen.writeObjectField("pipeline", pipeline);
+			}
+		}
 		gen.writeEndObject();
 		gen.writeEndObject();
 	}
 
-	private void serializeEvent(JsonGenerator gen, T event, List<AbstractPropertyAndEncoder<T>> propertyList) throws IOException {
+	private String getDocumentId(T event, String generatedId) {
+		if (documentIdPattern != null) {
+			String id = documentIdPattern.encode(event);
+			if (!id.isEmpty()) {
+				return id;
+			}
+		}
+		return generatedId;
+	}
+
+	private String[] generateDocumentIds(List<T> eventsCopy) {
+		if (!generateDocumentIds) {
+			return null;
+		}
+		String[] ids = new String[eventsCopy.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = DocumentIds.next(hashContent(eventsCopy.get(i)));
+		}
+		return ids;
+	}
+
+	// Documents with an ID are created rather than indexed by default, so that sending one again is a harmless conflict
+	private String getOpType(T event, boolean hasId) {
+		if (opTypePattern == null) {
+			return hasId ? OP_TYPE_CREATE : OP_TYPE_INDEX;
+		}
+		return OP_TYPE_CREATE.equals(opTypePattern.encode(event).trim()) ? OP_TYPE_CREATE : OP_TYPE_INDEX;
+	}
+
+	/**
+	 * @return a hash of the event's content for generated document IDs, see {@link DocumentIds}
+	 */
+	protected abstract long hashContent(T event);
+
+	private void serializeEvent(JsonGenerator gen, T event, List<AbstractPropertyAndEncoder<T>> propertyList, PropertySerializer<T> propertySerializer) throws IOException {
 		gen.writeStartObject();
 
-		serializeCommonFields(gen, event);
+		serializeCommonFields(gen, event, propertySerializer);
 
 		for (AbstractPropertyAndEncoder<T> pae : propertyList) {
 			propertySerializer.serializeProperty(gen, event, pae);
@@ -194,7 +894,11 @@ public abstract class AbstractElasticsearchPublisher<T> implements Runnable {
 		gen.writeEndObject();
 	}
 
-	protected abstract void serializeCommonFields(JsonGenerator gen, T event) throws IOException;
+	/**
+	 * May be called from several threads at once (see serializationThreads), each with its own generator and
+	 * PropertySerializer
+	 */
+	protected abstract void serializeCommonFields(JsonGenerator gen, T event, PropertySerializer<T> propertySerializer) throws IOException;
 
 	protected static String getTimestamp(long timestamp) {
 		return DATE_FORMAT.get().format(new Date(timestamp));
@@ -1,22 +1,80 @@
 package com.internetitem.logback.elasticsearch;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import ch.qos.logback.access.spi.IAccessEvent;
 import ch.qos.logback.core.Context;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.internetitem.logback.elasticsearch.config.ElasticsearchProperties;
 import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
 import com.internetitem.logback.elasticsearch.config.Property;
 import com.internetitem.logback.elasticsearch.config.Settings;
 import com.internetitem.logback.elasticsearch.util.AbstractPropertyAndEncoder;
 import com.internetitem.logback.elasticsearch.util.AccessPropertyAndEncoder;
+import com.internetitem.logback.elasticsearch.util.DocumentIds;
 import com.internetitem.logback.elasticsearch.util.ErrorReporter;
 
 public class AccessElasticsearchPublisher extends AbstractElasticsearchPublisher<IAccessEvent> {
 
+	/**
+	 * Fields read straight off the event (instead of rendering a pattern and parsing it back), see accessFields
+	 */
+	enum AccessField {
+		STATUS("status"),
+		ELAPSED_TIME("elapsed_time"),
+		CONTENT_LENGTH("content_length"),
+		METHOD("method"),
+		URI("uri"),
+		REMOTE_ADDR("remote_addr");
+
+		private final SerializedString fieldName;
+
+		AccessField(String fieldName) {
+			this.fieldName = new SerializedString(fieldName);
+		}
+	}
+
+	private static final SerializedString REQUEST_HEADERS = new SerializedString("request_headers");
+	private static final SerializedString RESPONSE_HEADERS = new SerializedString("response_headers");
+	private static final SerializedString REQUEST_CONTENT = new SerializedString("request_content");
+	private static final SerializedString RESPONSE_CONTENT = new SerializedString("response_content");
+
+	private final Set<AccessField> accessFields;
+	private final List<String> requestHeaders;
+	private final List<SerializedString> requestHeaderNames;
+	private final List<String> responseHeaders;
+	private final List<SerializedString> responseHeaderNames;
+
 	public AccessElasticsearchPublisher(Context context, ErrorReporter errorReporter, Settings settings, ElasticsearchProperties properties, HttpRequestHeaders httpRequestHeaders) throws IOException {
 		super(context, errorReporter, settings, properties, httpRequestHeaders);
+
+		this.accessFields = EnumSet.noneOf(AccessField.class);
+		for (String name : settings.getAccessFields()) {
+			try {
+				accessFields.add(AccessField.valueOf(name.toUpperCase(Locale.ROOT)));
+			} catch (IllegalArgumentException e) {
+				errorReporter.logWarning("Unknown access field [" + name + "] - ignoring it");
+			}
+		}
+		this.requestHeaders = new ArrayList<String>();
+		this.requestHeaderNames = new ArrayList<SerializedString>();
+		addHeaders(settings.getRequestHeaders(), requestHeaders, requestHeaderNames);
+		this.responseHeaders = new ArrayList<String>();
+		this.responseHeaderNames = new ArrayList<SerializedString>();
+		addHeaders(settings.getResponseHeaders(), responseHeaders, responseHeaderNames);
+	}
+
+	private static void addHeaders(List<String> configured, List<String> headers, List<SerializedString> fieldNames) {
+		for (String header : configured) {
+			headers.add(header);
+			fieldNames.add(new SerializedString(header.toLowerCase(Locale.ROOT)));
+		}
 	}
 
 	@Override
@@ -25,7 +83,97 @@ public class AccessElasticsearchPublisher extends AbstractElasticsearchPublisher
 	}
 
 	@Override
-	protected void serializeCommonFields(JsonGenerator gen, IAccessEvent event) throws IOException {
+	protected long hashContent(IAccessEvent event) {
+		long hash = DocumentIds.startHash();
+		hash = DocumentIds.hash(hash, event.getTimeStamp());
+		hash = DocumentIds.hash(hash, event.getMethod());
+		hash = DocumentIds.hash(hash, event.getRequestURI());
+		hash = DocumentIds.hash(hash, event.getStatusCode());
+		return DocumentIds.hash(hash, event.getRemoteAddr());
+	}
+
+	@Override
+	protected void serializeCommonFields(JsonGenerator gen, IAccessEvent event, PropertySerializer<IAccessEvent> propertySerializer) throws IOException {
 		gen.writeObjectField("@timestamp", getTimestamp(event.getTimeStamp()));
+
+		for (AccessField field : accessFields) {
+			switch (field) {
+				case STATUS:
+					writeNumber(gen, field.fieldName, event.getStatusCode());
+					break;
+				case ELAPSED_TIME:
+					writeNumber(gen, field.fieldName, event.getElapsedTime());
+					break;
+				case CONTENT_LENGTH:
+					writeNumber(gen, field.fieldName, event.getContentLength());
+					break;
+				case METHOD:
+					writeString(gen, propertySerializer, field.fieldName, event.getMethod());
+					break;
+				case URI:
+					writeString(gen, propertySerializer, field.fieldName, event.getRequestURI());
+					break;
+				case REMOTE_ADDR:
+					writeString(gen, propertySerializer, field.fieldName, event.getRemoteAddr());
+					break;
+			}
+		}
+
+		if (!requestHeaders.isEmpty()) {
+			boolean started = false;
+			for (int i = 0; i < requestHeaders.size(); i++) {
+				started = writeHeader(gen, propertySerializer, REQUEST_HEADERS, started, requestHeaderNames.get(i), event.getRequestHeader(requestHeaders.get(i)));
+			}
+			if (started) {
+				gen.writeEndObject();
+			}
+		}
+		if (!responseHeaders.isEmpty()) {
+			boolean started = false;
+			for (int i = 0; i < responseHeaders.size(); i++) {
+				started = writeHeader(gen, propertySerializer, RESPONSE_HEADERS, started, responseHeaderNames.get(i), event.getResponseHeader(responseHeaders.get(i)));
+			}
+			if (started) {
+				gen.writeEndObject();
+			}
+		}
+
+		if (settings.isIncludeRequestContent()) {
+			writeString(gen, propertySerializer, REQUEST_CONTENT, event.getRequestContent());
+		}
+		if (settings.isIncludeResponseContent()) {
+			writeString(gen, propertySerializer, RESPONSE_CONTENT, event.getResponseContent());
+		}
+	}
+
+	// Negative values mean the information isn't available
+	private static void writeNumber(JsonGenerator gen, SerializedString fieldName, long value) throws IOException {
+		if (value >= 0) {
+			gen.writeFieldName(fieldName);
+			gen.writeNumber(value);
+		}
+	}
+
+	private static void writeString(JsonGenerator gen, PropertySerializer<IAccessEvent> propertySerializer, SerializedString fieldName, String value) throws IOException {
+		if (isAvailable(value)) {
+			propertySerializer.writeStringField(gen, fieldName, value, -1);
+		}
+	}
+
+	// The headers object is only started once there is a header to put into it
+	private static boolean writeHeader(JsonGenerator gen, PropertySerializer<IAccessEvent> propertySerializer, SerializedString objectName, boolean started, SerializedString fieldName, String value) throws IOException {
+		if (!isAvailable(value)) {
+			return started;
+		}
+		if (!started) {
+			gen.writeFieldName(objectName);
+			gen.writeStartObject();
+		}
+		propertySerializer.writeStringField(gen, fieldName, value, -1);
+		return true;
+	}
+
+	private static boolean isAvailable(String value) {
+		return value != null && !value.isEmpty() && !IAccessEvent.NA.equals(value);
 	}
 }
@@ -1,8 +1,9 @@
 package com.internetitem.logback.elasticsearch;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Context;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -12,12 +13,39 @@ import com.internetitem.logback.elasticsearch.config.Property;
 import com.internetitem.logback.elasticsearch.config.Settings;
 import com.internetitem.logback.elasticsearch.util.AbstractPropertyAndEncoder;
 import com.internetitem.logback.elasticsearch.util.ClassicPropertyAndEncoder;
+import com.internetitem.logback.elasticsearch.util.DocumentIds;
 import com.internetitem.logback.elasticsearch.util.ErrorReporter;
 
 public class ClassicElasticsearchPublisher extends AbstractElasticsearchPublisher<ILoggingEvent> {
 
+    private static final String MESSAGE = "message";
+
+    private final MdcSerializer mdcSerializer;
+    private final LoggerRuleTable loggerRuleTable;
+    private final Level priorityLevel;
+    private final String priorityMarker;
+    private final String rawJsonFallbackField;
+    private final AtomicLong invalidRawJsonCount;
+
     public ClassicElasticsearchPublisher(Context context, ErrorReporter errorReporter, Settings settings, ElasticsearchProperties properties, HttpRequestHeaders headers) throws IOException {
+        this(context, errorReporter, settings, properties, headers, null);
+    }
+
+    public ClassicElasticsearchPublisher(Context context, ErrorReporter errorReporter, Settings settings, ElasticsearchProperties properties, HttpRequestHeaders headers, LoggerRuleTable loggerRuleTable) throws IOException {
         super(context, errorReporter, settings, properties, headers);
+        this.mdcSerializer = new MdcSerializer(settings);
+        this.loggerRuleTable = loggerRuleTable != null && loggerRuleTable.hasIndexes() ? loggerRuleTable : null;
+        this.priorityLevel = settings.getPriorityLevel() != null ? Level.toLevel(settings.getPriorityLevel().trim(), null) : null;
+        this.priorityMarker = settings.getPriorityMarker() != null ? settings.getPriorityMarker().trim() : null;
+        this.rawJsonFallbackField = settings.getRawJsonFallbackField() != null && !settings.getRawJsonFallbackField().trim().isEmpty() ? settings.getRawJsonFallbackField().trim() : null;
+        this.invalidRawJsonCount = new AtomicLong();
+    }
+
+    /**
+     * @return number of messages that were not valid JSON despite rawJsonMessage, and were sent as strings instead
+     */
+    public long getInvalidRawJsonCount() {
+        return invalidRawJsonCount.get();
     }
 
     @Override
@@ -26,24 +54,69 @@ public class ClassicElasticsearchPublisher extends AbstractElasticsearchPublishe
     }
 
     @Override
-    protected void serializeCommonFields(JsonGenerator gen, ILoggingEvent event) throws IOException {
+    protected AbstractPropertyAndEncoder<ILoggingEvent> getIndexPattern(ILoggingEvent event) {
+        if (loggerRuleTable != null) {
+            AbstractPropertyAndEncoder<ILoggingEvent> index = loggerRuleTable.decide(event.getLoggerName()).getIndex();
+            if (index != null) {
+                return index;
+            }
+        }
+        return super.getIndexPattern(event);
+    }
+
+    @Override
+    protected boolean isPriority(ILoggingEvent event) {
+        if (priorityLevel != null && event.getLevel() != null && event.getLevel().isGreaterOrEqual(priorityLevel)) {
+            return true;
+        }
+        return priorityMarker != null && event.getMarker() != null && event.getMarker().contains(priorityMarker);
+    }
+
+    @Override
+    protected boolean isLowPriority(ILoggingEvent event) {
+        return isBelowWarn(event);
+    }
+
+    static boolean isBelowWarn(ILoggingEvent event) {
+        return event.getLevel() == null || !event.getLevel().isGreaterOrEqual(Level.WARN);
+    }
+
+    @Override
+    protected long hashContent(ILoggingEvent event) {
+        long hash = DocumentIds.startHash();
+        hash = DocumentIds.hash(hash, event.getTimeStamp());
+        hash = DocumentIds.hash(hash, event.getLoggerName());
+        hash = DocumentIds.hash(hash, event.getLevel() != null ? event.getLevel().toInt() : -1);
+        hash = DocumentIds.hash(hash, event.getThreadName());
+        return DocumentIds.hash(hash, event.getFormattedMessage());
+    }
+
+    @Override
+    protected void serializeCommonFields(JsonGenerator gen, ILoggingEvent event, PropertySerializer<ILoggingEvent> propertySerializer) throws IOException {
         gen.writeObjectField("@timestamp", getTimestamp(event.getTimeStamp()));
 
+        String formattedMessage = event.getFormattedMessage();
+        String messageField = MESSAGE;
+        // Raw JSON can't be truncated, so an oversized one is sent as a (truncated) string instead. An invalid one is
+        // sent as a string as well (in rawJsonFallbackField, if set), so that it only affects its own document
         if (settings.isRawJsonMessage()) {
-            gen.writeFieldName("message");
-            gen.writeRawValue(event.getFormattedMessage());
-        } else {
-            String formattedMessage = event.getFormattedMessage();
-            if (settings.getMaxMessageSize() > 0 && formattedMessage.length() > settings.getMaxMessageSize()) {
-                formattedMessage = formattedMessage.substring(0, settings.getMaxMessageSize()) + "..";
+            if (!isSingleJsonValue(formattedMessage)) {
+                invalidRawJsonCount.incrementAndGet();
+                if (rawJsonFallbackField != null) {
+                    messageField = rawJsonFallbackField;
+                }
+            } else if (propertySerializer.isWithinLimits(gen, MESSAGE, formattedMessage, settings.getMaxMessageSize())) {
+                gen.writeFieldName(MESSAGE);
+                writeRawJsonValue(gen, formattedMessage);
+                messageField = null;
             }
-            gen.writeObjectField("message", formattedMessage);
+        }
+        if (messageField != null) {
+            propertySerializer.writeStringField(gen, messageField, formattedMessage, settings.getMaxMessageSize());
         }
 
         if(settings.isIncludeMdc()) {
-            for (Map.Entry<String, String> entry : event.getMDCPropertyMap().entrySet()) {
-                gen.writeObjectField(entry.getKey(), entry.getValue());
-            }
+            mdcSerializer.serialize(gen, event.getMDCPropertyMap(), propertySerializer);
         }
     }
 }
@@ -24,5 +24,36 @@ public class ElasticsearchAccessAppender extends AbstractElasticsearchAppender<I
         return new AccessElasticsearchPublisher(getContext(), errorReporter, settings, elasticsearchProperties, headers);
     }
 
+    public void setAccessFields(String accessFields) {
+        for (String field : accessFields.split(",")) {
+            if (!field.trim().isEmpty()) {
+                settings.addAccessField(field.trim());
+            }
+        }
+    }
+
+    public void setRequestHeaders(String requestHeaders) {
+        for (String header : requestHeaders.split(",")) {
+            if (!header.trim().isEmpty()) {
+                settings.addRequestHeader(header.trim());
+            }
+        }
+    }
+
+    public void setResponseHeaders(String responseHeaders) {
+        for (String header : responseHeaders.split(",")) {
+            if (!header.trim().isEmpty()) {
+                settings.addResponseHeader(header.trim());
+            }
+        }
+    }
+
+    public void setIncludeRequestContent(boolean includeRequestContent) {
+        settings.setIncludeRequestContent(includeRequestContent);
+    }
+
+    public void setIncludeResponseContent(boolean includeResponseContent) {
+        settings.setIncludeResponseContent(includeResponseContent);
+    }
 
 }
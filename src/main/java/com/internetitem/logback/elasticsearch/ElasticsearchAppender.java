@@ -1,12 +1,20 @@
 package com.internetitem.logback.elasticsearch;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.internetitem.logback.elasticsearch.config.LoggerRule;
+import com.internetitem.logback.elasticsearch.config.LoggerRules;
 import com.internetitem.logback.elasticsearch.config.Settings;
 
 public class ElasticsearchAppender extends AbstractElasticsearchAppender<ILoggingEvent> {
 
+    private LoggerRules loggerRules;
+    private LoggerRuleTable loggerRuleTable;
+
     public ElasticsearchAppender() {
     }
 
@@ -15,22 +23,47 @@ public class ElasticsearchAppender extends AbstractElasticsearchAppender<ILoggin
     }
 
     @Override
-    protected void appendInternal(ILoggingEvent eventObject) {
+    public void start() {
+        loggerRuleTable = new LoggerRuleTable(getContext(), loggerRules != null ? loggerRules.getRules() : new ArrayList<LoggerRule>(), excludedLoggers());
+        super.start();
+        if (getContext() instanceof LoggerContext) {
+            ((LoggerContext) getContext()).addListener(loggerRuleTable);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (isStarted() && getContext() instanceof LoggerContext) {
+            ((LoggerContext) getContext()).removeListener(loggerRuleTable);
+        }
+        super.stop();
+    }
 
-        String targetLogger = eventObject.getLoggerName();
+    // Events sent to the output logger and the error logger must never be sent back to Elasticsearch
+    private List<String> excludedLoggers() {
+        List<String> excluded = new ArrayList<String>();
+        if (settings.getLoggerName() != null) {
+            excluded.add(settings.getLoggerName());
+        }
+        if (settings.getErrorLoggerName() != null) {
+            excluded.add(settings.getErrorLoggerName());
+        }
+        return excluded;
+    }
+
+    @Override
+    protected void appendInternal(ILoggingEvent eventObject) {
 
-        String loggerName = settings.getLoggerName();
-        if (loggerName != null && loggerName.equals(targetLogger)) {
+        if (!loggerRuleTable.decide(eventObject.getLoggerName()).accepts(eventObject.getLevel())) {
             return;
         }
 
-        String errorLoggerName = settings.getErrorLoggerName();
-        if (errorLoggerName != null && errorLoggerName.equals(targetLogger)) {
+        if (heapPressure != null && !heapPressure.accepts(ClassicElasticsearchPublisher.isBelowWarn(eventObject))) {
             return;
         }
 
         eventObject.prepareForDeferredProcessing();
-        if (settings.isIncludeCallerData()) {
+        if (settings.isIncludeCallerData() && (heapPressure == null || heapPressure.capturesCallerData())) {
             eventObject.getCallerData();
         }
 
@@ -38,7 +71,47 @@ public class ElasticsearchAppender extends AbstractElasticsearchAppender<ILoggin
     }
 
     protected ClassicElasticsearchPublisher buildElasticsearchPublisher() throws IOException {
-        return new ClassicElasticsearchPublisher(getContext(), errorReporter, settings, elasticsearchProperties, headers);
+        return new ClassicElasticsearchPublisher(getContext(), errorReporter, settings, elasticsearchProperties, headers, loggerRuleTable);
+    }
+
+    public void setLoggerRules(LoggerRules loggerRules) {
+        this.loggerRules = loggerRules;
+    }
+
+    public void setMdcIncludeKeys(String mdcIncludeKeys) {
+        for (String key : mdcIncludeKeys.split(",")) {
+            if (!key.trim().isEmpty()) {
+                settings.addMdcIncludeKey(key.trim());
+            }
+        }
+    }
+
+    public void setMdcExcludeKeys(String mdcExcludeKeys) {
+        for (String key : mdcExcludeKeys.split(",")) {
+            if (!key.trim().isEmpty()) {
+                settings.addMdcExcludeKey(key.trim());
+            }
+        }
+    }
+
+    public void setMdcFields(String mdcFields) {
+        for (String field : mdcFields.split(",")) {
+            if (!field.trim().isEmpty()) {
+                settings.addMdcField(field.trim());
+            }
+        }
+    }
+
+    public void setMdcPrefix(String mdcPrefix) {
+        settings.setMdcPrefix(mdcPrefix);
+    }
+
+    public void setPriorityLevel(String priorityLevel) {
+        settings.setPriorityLevel(priorityLevel);
+    }
+
+    public void setPriorityMarker(String priorityMarker) {
+        settings.setPriorityMarker(priorityMarker);
     }
 
 
@@ -1,66 +1,181 @@
 package com.internetitem.logback.elasticsearch;
 
 import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ByteBuilder;
 import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.WorkerThreadFactory;
 import com.internetitem.logback.elasticsearch.writer.SafeWriter;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
 
-public class ElasticsearchOutputAggregator extends Writer {
+/**
+ * Collects the serialized output of one batch and hands it to a WriterPipeline per output. The batch is serialized
+ * once, in order, and handed to the outputs that take all events as it is; only for the NORMAL and PRIORITY lanes
+ * (see priorityLevel) is it split into the documents of priority events and the others.
+ *
+ * Each pipeline enforces maxQueueSize on its own, so with priority lanes, the priority output can hold up to
+ * maxQueueSize on top of what the normal output holds.
+ */
+public class ElasticsearchOutputAggregator extends OutputStream {
+
+	/**
+	 * Which events an output gets
+	 */
+	public enum Lane {
+		ALL,
+		NORMAL,
+		PRIORITY
+	}
+
+	private static final byte[] EMPTY = new byte[0];
+	// Action line and source of a document, each followed by the separator
+	private static final int SEPARATORS_PER_DOCUMENT = 2;
 
 	private Settings settings;
 	private ErrorReporter errorReporter;
-	private List<SafeWriter> writers;
+	private WorkerThreadFactory threadFactory;
+	private List<WriterPipeline> pipelines;
+	private List<Lane> lanes;
+	private byte separator;
+	private ByteBuilder batch;
+	private ByteBuilder normalBatch;
+	private ByteBuilder priorityBatch;
 
-	public ElasticsearchOutputAggregator(Settings settings, ErrorReporter errorReporter) {
-		this.writers = new ArrayList<SafeWriter>();
+	public ElasticsearchOutputAggregator(Settings settings, ErrorReporter errorReporter, WorkerThreadFactory threadFactory) {
+		this.pipelines = new ArrayList<WriterPipeline>();
+		this.lanes = new ArrayList<Lane>();
 		this.settings = settings;
 		this.errorReporter = errorReporter;
+		this.threadFactory = threadFactory;
+		this.separator = settings.getFormat().getSeparator();
+		this.batch = new ByteBuilder();
+		this.normalBatch = new ByteBuilder();
+		this.priorityBatch = new ByteBuilder();
 	}
 
 	public void addWriter(SafeWriter writer) {
-		writers.add(writer);
+		addWriter(writer, Lane.ALL);
+	}
+
+	public void addWriter(SafeWriter writer, Lane lane) {
+		pipelines.add(new WriterPipeline(writer, settings, errorReporter, threadFactory));
+		lanes.add(lane);
+	}
+
+	public List<WriterPipeline> getPipelines() {
+		return Collections.unmodifiableList(pipelines);
 	}
 
 	@Override
-	public void write(char[] cbuf, int off, int len) throws IOException {
-		for (SafeWriter writer : writers) {
-			writer.write(cbuf, off, len);
+	public void write(byte[] buf, int off, int len) throws IOException {
+		batch.append(buf, off, len);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		batch.append((byte) b);
+	}
+
+	public boolean hasOutputs() {
+		return !pipelines.isEmpty();
+	}
+
+	/**
+	 * Hand everything written since the last call to every output (when all events go to every output)
+	 *
+	 * @param seq sequence number of the last event in the batch
+	 */
+	public void dispatch(long seq) {
+		dispatch(seq, null);
+	}
+
+	/**
+	 * Hand everything written since the last call to every output that takes events of its lane
+	 *
+	 * @param seq sequence number of the last event in the batch
+	 * @param priority for each document written, in order, whether it belongs to a priority event (or null if none
+	 * does)
+	 */
+	public void dispatch(long seq, boolean[] priority) {
+		byte[] all = batch.toByteArray();
+		batch.setLength(0);
+		byte[] normal = all;
+		byte[] prioritized = EMPTY;
+		if (priority != null && hasLanes()) {
+			split(all, priority);
+			normal = normalBatch.toByteArray();
+			prioritized = priorityBatch.toByteArray();
+			normalBatch.setLength(0);
+			priorityBatch.setLength(0);
+		}
+		for (int i = 0; i < pipelines.size(); i++) {
+			Lane lane = lanes.get(i);
+			pipelines.get(i).offer(lane == Lane.ALL ? all : lane == Lane.NORMAL ? normal : prioritized, seq);
 		}
 	}
 
-	public boolean hasPendingData() {
-		for (SafeWriter writer : writers) {
-			if (writer.hasPendingData()) {
-				return true;
+	private boolean hasLanes() {
+		return lanes.contains(Lane.NORMAL) || lanes.contains(Lane.PRIORITY);
+	}
+
+	// Documents beyond the end of priority (which shouldn't happen) go to the normal lane
+	private void split(byte[] all, boolean[] priority) {
+		int document = 0;
+		int documentStart = 0;
+		int separators = 0;
+		for (int i = 0; i < all.length; i++) {
+			if (all[i] == separator && ++separators == SEPARATORS_PER_DOCUMENT) {
+				ByteBuilder lane = document < priority.length && priority[document] ? priorityBatch : normalBatch;
+				lane.append(all, documentStart, i + 1 - documentStart);
+				document++;
+				documentStart = i + 1;
+				separators = 0;
 			}
 		}
-		return false;
+		if (documentStart < all.length) {
+			normalBatch.append(all, documentStart, all.length - documentStart);
+		}
 	}
 
-	public boolean hasOutputs() {
-		return !writers.isEmpty();
+	/**
+	 * Throw away anything written since the last dispatch (e.g. after a serialization failure)
+	 */
+	public void discard() {
+		batch.setLength(0);
 	}
 
-	public boolean sendData() {
-		boolean success = true;
-		for (SafeWriter writer : writers) {
-			try {
-				writer.sendData();
-			} catch (IOException e) {
-				success = false;
-				errorReporter.logWarning("Failed to send events to Elasticsearch: " + e.getMessage());
-				if (settings.isErrorsToStderr()) {
-					System.err.println("[" + new Date().toString() + "] Failed to send events to Elasticsearch: " + e.getMessage());
-				}
-
+	/**
+	 * Wait until every output has delivered everything up to the given sequence number
+	 *
+	 * @param seq sequence number to wait for
+	 * @param deadline absolute time (in ms) to give up at
+	 * @return true if all outputs delivered everything before the deadline
+	 */
+	public boolean awaitDelivered(long seq, long deadline) {
+		for (WriterPipeline pipeline : pipelines) {
+			if (!pipeline.awaitAcknowledged(seq, deadline)) {
+				return false;
 			}
 		}
-		return success;
+		return true;
+	}
+
+	/**
+	 * @return true if any output dropped events after from, up to and including to, because its queue was full
+	 * @see WriterPipeline#isLost(long, long)
+	 */
+	public boolean isLost(long from, long to) {
+		boolean lost = false;
+		for (WriterPipeline pipeline : pipelines) {
+			// Every pipeline is asked, so that each forgets what it dropped up to from
+			lost |= pipeline.isLost(from, to);
+		}
+		return lost;
 	}
 
 	@Override
@@ -70,7 +185,11 @@ public class ElasticsearchOutputAggregator extends Writer {
 
 	@Override
 	public void close() throws IOException {
-		// No-op
+		for (WriterPipeline pipeline : pipelines) {
+			if (pipeline.getWriter() instanceof Closeable) {
+				((Closeable) pipeline.getWriter()).close();
+			}
+		}
 	}
 
 }
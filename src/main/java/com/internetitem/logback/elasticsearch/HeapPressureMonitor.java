@@ -0,0 +1,277 @@
+package com.internetitem.logback.elasticsearch;
+
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the heap pools that report their usage after garbage collection (i.e. the old generation), and steps
+ * through increasingly drastic ways of saving memory while that usage stays above heapPressureThreshold: one mode
+ * further at most every CHECK_INTERVAL, and one mode back at the same pace once it has dropped below
+ * heapPressureRecovery. The JVM reports exceeding the threshold right after the collection, so the first step is
+ * taken immediately; later ones are checked for whenever the mode is asked for.
+ *
+ * The collection usage threshold of a pool is shared by the whole JVM: while monitors are running, it is set to the
+ * lowest one they ask for, and once the last of them has stopped, it is set back to what it was before.
+ */
+public class HeapPressureMonitor implements NotificationListener {
+
+	public enum Mode {
+		NORMAL("sending everything"),
+		NO_CALLER_DATA("not capturing caller data"),
+		SAMPLE_LOW_LEVELS("sending one in " + SAMPLE_RATE + " events below WARN"),
+		DROP_LOW_LEVELS("dropping events below WARN, including queued ones"),
+		RELEASE_BUFFERS("dropping events below WARN and not pooling send buffers");
+
+		private final String description;
+
+		Mode(String description) {
+			this.description = description;
+		}
+
+		public boolean isAtLeast(Mode other) {
+			return compareTo(other) >= 0;
+		}
+	}
+
+	public interface Listener {
+		void onHeapPressure(Mode mode);
+	}
+
+	private static final long CHECK_INTERVAL = 2000;
+	private static final int SAMPLE_RATE = 10;
+	private static final int DEFAULT_HYSTERESIS = 10;
+
+	// Per pool name, guarded by itself
+	private static final Map<String, SharedThreshold> THRESHOLDS = new HashMap<String, SharedThreshold>();
+
+	private final ErrorReporter errorReporter;
+	private final Listener listener;
+	private final int threshold;
+	private final int recovery;
+	private final List<MemoryPoolMXBean> pools;
+	private final NotificationEmitter emitter;
+	private final long checkInterval;
+	// Threshold asked for per pool, in the order of pools
+	private final long[] limits;
+
+	private volatile Mode mode = Mode.NORMAL;
+	private volatile long nextCheck;
+	private final AtomicInteger sampleCounter = new AtomicInteger();
+	private final AtomicLong shedCount = new AtomicLong();
+	private final AtomicLong transitionCount = new AtomicLong();
+
+	public HeapPressureMonitor(ErrorReporter errorReporter, Settings settings, Listener listener) {
+		this(errorReporter, settings, listener, heapPools(), (NotificationEmitter) ManagementFactory.getMemoryMXBean(), CHECK_INTERVAL);
+	}
+
+	/**
+	 * @param pools heap pools to watch (and set the threshold of), which must support a collection usage threshold
+	 * @param emitter source of the notifications that a threshold was exceeded
+	 * @param checkInterval minimum time (in ms) between two steps
+	 */
+	HeapPressureMonitor(ErrorReporter errorReporter, Settings settings, Listener listener, List<MemoryPoolMXBean> pools, NotificationEmitter emitter, long checkInterval) {
+		this.errorReporter = errorReporter;
+		this.listener = listener;
+		this.threshold = settings.getHeapPressureThreshold();
+		this.recovery = settings.getHeapPressureRecovery() > 0 ? Math.min(settings.getHeapPressureRecovery(), threshold) : threshold - DEFAULT_HYSTERESIS;
+		this.pools = pools;
+		this.emitter = emitter;
+		this.checkInterval = checkInterval;
+		this.limits = new long[pools.size()];
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+				pools.add(pool);
+			}
+		}
+		return pools;
+	}
+
+	public void start() {
+		if (pools.isEmpty()) {
+			errorReporter.logWarning("No heap pool with a known maximum size reports its usage after garbage collection - heapPressureThreshold has no effect");
+			return;
+		}
+		synchronized (THRESHOLDS) {
+			for (int i = 0; i < pools.size(); i++) {
+				MemoryPoolMXBean pool = pools.get(i);
+				SharedThreshold shared = THRESHOLDS.get(pool.getName());
+				if (shared == null) {
+					shared = new SharedThreshold(pool.getCollectionUsageThreshold());
+					THRESHOLDS.put(pool.getName(), shared);
+				}
+				limits[i] = pool.getUsage().getMax() * threshold / 100;
+				shared.requested.add(limits[i]);
+				shared.apply(pool);
+			}
+		}
+		emitter.addNotificationListener(this, null, null);
+	}
+
+	public void stop() {
+		if (pools.isEmpty()) {
+			return;
+		}
+		try {
+			emitter.removeNotificationListener(this);
+		} catch (ListenerNotFoundException e) {
+			// Never started
+			return;
+		}
+		synchronized (THRESHOLDS) {
+			for (int i = 0; i < pools.size(); i++) {
+				MemoryPoolMXBean pool = pools.get(i);
+				SharedThreshold shared = THRESHOLDS.get(pool.getName());
+				if (shared == null) {
+					continue;
+				}
+				shared.requested.remove(Long.valueOf(limits[i]));
+				if (shared.requested.isEmpty()) {
+					THRESHOLDS.remove(pool.getName());
+				}
+				shared.apply(pool);
+			}
+		}
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+			evaluate(System.currentTimeMillis(), true);
+		}
+	}
+
+	public Mode getMode() {
+		long now = System.currentTimeMillis();
+		if (now >= nextCheck) {
+			evaluate(now, false);
+		}
+		return mode;
+	}
+
+	public boolean capturesCallerData() {
+		return !getMode().isAtLeast(Mode.NO_CALLER_DATA);
+	}
+
+	/**
+	 * @param lowPriority whether the event is below WARN (or otherwise one that can be done without)
+	 * @return false if the event should be dropped to save memory
+	 */
+	public boolean accepts(boolean lowPriority) {
+		if (!lowPriority) {
+			return true;
+		}
+		Mode current = getMode();
+		if (!current.isAtLeast(Mode.SAMPLE_LOW_LEVELS)
+			|| current == Mode.SAMPLE_LOW_LEVELS && sampleCounter.incrementAndGet() % SAMPLE_RATE == 0) {
+			return true;
+		}
+		shedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Count events dropped elsewhere (e.g. from the queue) because of heap pressure
+	 */
+	public void addShed(long count) {
+		shedCount.addAndGet(count);
+	}
+
+	/**
+	 * @return number of events that were not sent because of heap pressure
+	 */
+	public long getShedCount() {
+		return shedCount.get();
+	}
+
+	/**
+	 * @return number of times the mode changed
+	 */
+	public long getTransitionCount() {
+		return transitionCount.get();
+	}
+
+	private synchronized void evaluate(long now, boolean force) {
+		if (!force && now < nextCheck) {
+			return;
+		}
+		nextCheck = now + checkInterval;
+
+		int usage = usage();
+		Mode current = mode;
+		Mode next = current;
+		if (usage >= threshold && current != Mode.RELEASE_BUFFERS) {
+			next = Mode.values()[current.ordinal() + 1];
+		} else if (usage < recovery && current != Mode.NORMAL) {
+			next = Mode.values()[current.ordinal() - 1];
+		}
+		if (next == current) {
+			return;
+		}
+
+		mode = next;
+		transitionCount.incrementAndGet();
+		if (next.compareTo(current) > 0) {
+			errorReporter.logWarning("Heap usage after garbage collection is at " + usage + "% (heapPressureThreshold is " + threshold + "%) - now " + next.description);
+		} else {
+			errorReporter.logInfo("Heap usage after garbage collection is down to " + usage + "% - now " + next.description);
+		}
+		listener.onHeapPressure(next);
+	}
+
+	// Highest usage after the last collection, in percent of the maximum size, of all watched pools
+	private int usage() {
+		long highest = 0;
+		for (MemoryPoolMXBean pool : pools) {
+			MemoryUsage afterGc = pool.getCollectionUsage();
+			long max = pool.getUsage().getMax();
+			if (afterGc != null && max > 0) {
+				highest = Math.max(highest, afterGc.getUsed() * 100 / max);
+			}
+		}
+		return (int) highest;
+	}
+
+	// What a pool's threshold was before any monitor changed it, and the thresholds the running monitors ask for
+	private static class SharedThreshold {
+		private final long previous;
+		private final List<Long> requested;
+
+		private SharedThreshold(long previous) {
+			this.previous = previous;
+			this.requested = new ArrayList<Long>();
+		}
+
+		// The lowest threshold asked for wins (0 disables the threshold, so it doesn't count as lowest)
+		private void apply(MemoryPoolMXBean pool) {
+			long lowest = previous;
+			for (long limit : requested) {
+				if (lowest == 0 || limit < lowest) {
+					lowest = limit;
+				}
+			}
+			if (pool.getCollectionUsageThreshold() != lowest) {
+				pool.setCollectionUsageThreshold(lowest);
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.internetitem.logback.elasticsearch;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggerContextListener;
+import ch.qos.logback.core.Context;
+import com.internetitem.logback.elasticsearch.config.LoggerRule;
+import com.internetitem.logback.elasticsearch.config.Property;
+import com.internetitem.logback.elasticsearch.util.AbstractPropertyAndEncoder;
+import com.internetitem.logback.elasticsearch.util.ClassicPropertyAndEncoder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides per logger whether its events are sent, from which level on and to which index. A rule applies to the
+ * logger it names and all loggers below it (ROOT applies to all of them); the most specific rule that sets an
+ * attribute wins. Decisions are worked out once per logger name, and forgotten when the logger context is reset.
+ *
+ * Excluded loggers (the appender's own output and error loggers) are matched exactly, not including the loggers below
+ * them, and no rule can enable them again.
+ */
+public class LoggerRuleTable implements LoggerContextListener {
+
+	public static final String ROOT = "ROOT";
+
+	private static final Decision ACCEPT_ALL = new Decision(true, null, null);
+	private static final Decision REJECT_ALL = new Decision(false, null, null);
+
+	private final List<CompiledRule> rules;
+	private final Set<String> excludedLoggers;
+	private final boolean hasIndexes;
+	private final ConcurrentMap<String, Decision> decisions;
+
+	/**
+	 * @param excludedLoggers names of loggers whose events are never sent, whatever the rules say
+	 */
+	public LoggerRuleTable(Context context, List<LoggerRule> rules, Collection<String> excludedLoggers) {
+		this.rules = new ArrayList<CompiledRule>();
+		this.excludedLoggers = new HashSet<String>(excludedLoggers);
+		boolean indexes = false;
+		for (LoggerRule rule : rules) {
+			if (rule.getLogger() == null) {
+				continue;
+			}
+			AbstractPropertyAndEncoder<ILoggingEvent> index = null;
+			if (rule.getIndex() != null && !rule.getIndex().trim().isEmpty()) {
+				index = new ClassicPropertyAndEncoder(new Property("<index>", rule.getIndex(), false), context);
+				indexes = true;
+			}
+			Level level = rule.getLevel() != null ? Level.toLevel(rule.getLevel().trim(), null) : null;
+			this.rules.add(new CompiledRule(rule.getLogger().trim(), rule.getEnabled(), level, index));
+		}
+		// Most specific first
+		Collections.sort(this.rules, new Comparator<CompiledRule>() {
+			@Override
+			public int compare(CompiledRule a, CompiledRule b) {
+				return b.depth() - a.depth();
+			}
+		});
+		this.hasIndexes = indexes;
+		this.decisions = new ConcurrentHashMap<String, Decision>();
+	}
+
+	/**
+	 * @return true if any rule overrides the index
+	 */
+	public boolean hasIndexes() {
+		return hasIndexes;
+	}
+
+	public Decision decide(String loggerName) {
+		if (loggerName == null) {
+			return rules.isEmpty() ? ACCEPT_ALL : compile("");
+		}
+		Decision decision = decisions.get(loggerName);
+		if (decision == null) {
+			decision = compile(loggerName);
+			decisions.put(loggerName, decision);
+		}
+		return decision;
+	}
+
+	private Decision compile(String loggerName) {
+		if (excludedLoggers.contains(loggerName)) {
+			return REJECT_ALL;
+		}
+		Boolean enabled = null;
+		Level level = null;
+		AbstractPropertyAndEncoder<ILoggingEvent> index = null;
+		for (CompiledRule rule : rules) {
+			if (!rule.matches(loggerName)) {
+				continue;
+			}
+			if (enabled == null) {
+				enabled = rule.enabled;
+			}
+			if (level == null) {
+				level = rule.level;
+			}
+			if (index == null) {
+				index = rule.index;
+			}
+		}
+		if (enabled == null && level == null && index == null) {
+			return ACCEPT_ALL;
+		}
+		return new Decision(enabled == null || enabled, level, index);
+	}
+
+	@Override
+	public boolean isResetResistant() {
+		return false;
+	}
+
+	@Override
+	public void onStart(LoggerContext context) {
+	}
+
+	@Override
+	public void onReset(LoggerContext context) {
+		decisions.clear();
+	}
+
+	@Override
+	public void onStop(LoggerContext context) {
+		decisions.clear();
+	}
+
+	@Override
+	public void onLevelChange(ch.qos.logback.classic.Logger logger, Level level) {
+	}
+
+	public static class Decision {
+		private final boolean enabled;
+		private final Level level;
+		private final AbstractPropertyAndEncoder<ILoggingEvent> index;
+
+		private Decision(boolean enabled, Level level, AbstractPropertyAndEncoder<ILoggingEvent> index) {
+			this.enabled = enabled;
+			this.level = level;
+			this.index = index;
+		}
+
+		public boolean accepts(Level eventLevel) {
+			return enabled && (level == null || eventLevel == null || eventLevel.isGreaterOrEqual(level));
+		}
+
+		/**
+		 * @return the index pattern for this logger, or null to use the appender's
+		 */
+		public AbstractPropertyAndEncoder<ILoggingEvent> getIndex() {
+			return index;
+		}
+	}
+
+	private static class CompiledRule {
+		private final String logger;
+		// null if the rule doesn't set it
+		private final Boolean enabled;
+		private final Level level;
+		private final AbstractPropertyAndEncoder<ILoggingEvent> index;
+
+		private CompiledRule(String logger, Boolean enabled, Level level, AbstractPropertyAndEncoder<ILoggingEvent> index) {
+			this.logger = ROOT.equalsIgnoreCase(logger) ? "" : logger;
+			this.enabled = enabled;
+			this.level = level;
+			this.index = index;
+		}
+
+		private int depth() {
+			return logger.length();
+		}
+
+		private boolean matches(String loggerName) {
+			return logger.isEmpty()
+				|| loggerName.startsWith(logger) && (loggerName.length() == logger.length() || loggerName.charAt(logger.length()) == '.');
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.internetitem.logback.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.internetitem.logback.elasticsearch.config.Property;
+import com.internetitem.logback.elasticsearch.config.Settings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes the MDC of an event as fields, limited to mdcIncludeKeys (looked up one by one, so other keys are never
+ * visited) or without mdcExcludeKeys, renamed and typed according to mdcFields and prefixed with mdcPrefix. The
+ * field name of every key is encoded once and reused.
+ */
+class MdcSerializer {
+
+    // Upper bound for field names cached for keys that aren't known up front, in case the MDC is used for unique values
+    private static final int MAX_CACHED_FIELDS = 1000;
+
+    private final String prefix;
+    private final Set<String> excludedKeys;
+    private final Map<String, MdcField> configuredFields;
+    private final List<MdcField> includedFields;
+    private final ConcurrentMap<String, MdcField> fieldCache;
+
+    MdcSerializer(Settings settings) {
+        this.prefix = settings.getMdcPrefix() != null ? settings.getMdcPrefix() : "";
+        this.excludedKeys = new HashSet<String>(settings.getMdcExcludeKeys());
+        this.configuredFields = new HashMap<String, MdcField>();
+        for (String spec : settings.getMdcFields()) {
+            MdcField field = parseField(spec);
+            configuredFields.put(field.key, field);
+        }
+        if (settings.getMdcIncludeKeys().isEmpty()) {
+            this.includedFields = null;
+        } else {
+            this.includedFields = new ArrayList<MdcField>();
+            for (String key : settings.getMdcIncludeKeys()) {
+                if (!excludedKeys.contains(key)) {
+                    includedFields.add(fieldFor(key));
+                }
+            }
+        }
+        this.fieldCache = new ConcurrentHashMap<String, MdcField>();
+    }
+
+    // key, key=name, key:type or key=name:type
+    private MdcField parseField(String spec) {
+        String key = spec;
+        String name = null;
+        Property.Type type = Property.Type.STRING;
+        int colon = key.lastIndexOf(':');
+        if (colon >= 0) {
+            type = Property.Type.parse(key.substring(colon + 1).trim());
+            key = key.substring(0, colon);
+        }
+        int equals = key.indexOf('=');
+        if (equals >= 0) {
+            name = key.substring(equals + 1).trim();
+            key = key.substring(0, equals);
+        }
+        key = key.trim();
+        return new MdcField(key, prefix + (name != null && !name.isEmpty() ? name : key), type);
+    }
+
+    private MdcField fieldFor(String key) {
+        MdcField field = configuredFields.get(key);
+        return field != null ? field : new MdcField(key, prefix + key, Property.Type.STRING);
+    }
+
+    void serialize(JsonGenerator gen, Map<String, String> mdc, PropertySerializer<?> propertySerializer) throws IOException {
+        if (mdc == null || mdc.isEmpty()) {
+            return;
+        }
+        if (includedFields != null) {
+            for (MdcField field : includedFields) {
+                String value = mdc.get(field.key);
+                if (value != null) {
+                    propertySerializer.writeTypedField(gen, field.name, value, field.type, -1);
+                }
+            }
+            return;
+        }
+        for (Map.Entry<String, String> entry : mdc.entrySet()) {
+            String key = entry.getKey();
+            if (excludedKeys.contains(key)) {
+                continue;
+            }
+            MdcField field = fieldCache.get(key);
+            if (field == null) {
+                field = fieldFor(key);
+                if (fieldCache.size() < MAX_CACHED_FIELDS) {
+                    fieldCache.putIfAbsent(key, field);
+                }
+            }
+            if (entry.getValue() == null) {
+                gen.writeFieldName(field.name);
+                gen.writeNull();
+            } else {
+                propertySerializer.writeTypedField(gen, field.name, entry.getValue(), field.type, -1);
+            }
+        }
+    }
+
+    private static class MdcField {
+        private final String key;
+        private final SerializedString name;
+        private final Property.Type type;
+
+        private MdcField(String key, String name, Property.Type type) {
+            this.key = key;
+            this.name = new SerializedString(name);
+            this.type = type;
+        }
+    }
+}
@@ -1,11 +1,83 @@
 package com.internetitem.logback.elasticsearch;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.internetitem.logback.elasticsearch.config.Property;
+import com.internetitem.logback.elasticsearch.config.Settings;
 import com.internetitem.logback.elasticsearch.util.AbstractPropertyAndEncoder;
+import com.internetitem.logback.elasticsearch.util.CountingOutputStream;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Writes fields to a document, enforcing the field and document size limits. Truncated values are written from a
+ * reusable buffer rather than a new String. Not thread safe, use one per generator.
+ */
 class PropertySerializer<T> {
+    // Comma, colon, quotes around name and value, and the closing brace of the document
+    private static final int FIELD_OVERHEAD = 7;
+
+    private final int maxFieldSize;
+    private final int maxDocumentSize;
+    private final char[] truncationMarker;
+    private final int truncationMarkerBytes;
+
+    private final AtomicLong truncatedCount;
+    private final AtomicLong droppedCount;
+
+    private char[] scratch = new char[0];
+    private CountingOutputStream documentOut;
+    private long documentStart;
+
+    PropertySerializer() {
+        this(new Settings());
+    }
+
+    PropertySerializer(Settings settings) {
+        this.maxFieldSize = settings.getMaxFieldSize();
+        this.maxDocumentSize = settings.getMaxDocumentSize();
+        String marker = settings.getTruncationMarker() != null ? settings.getTruncationMarker() : "";
+        this.truncationMarker = marker.toCharArray();
+        this.truncationMarkerBytes = utf8Length(marker, marker.length());
+        this.truncatedCount = new AtomicLong();
+        this.droppedCount = new AtomicLong();
+    }
+
+    /**
+     * A serializer with the same limits that adds to the same counters, for use with a generator on another thread
+     */
+    PropertySerializer(PropertySerializer<T> shared) {
+        this.maxFieldSize = shared.maxFieldSize;
+        this.maxDocumentSize = shared.maxDocumentSize;
+        this.truncationMarker = shared.truncationMarker;
+        this.truncationMarkerBytes = shared.truncationMarkerBytes;
+        this.truncatedCount = shared.truncatedCount;
+        this.droppedCount = shared.droppedCount;
+    }
+
+    /**
+     * @return number of values that were truncated to fit a limit
+     */
+    long getTruncatedCount() {
+        return truncatedCount.get();
+    }
+
+    /**
+     * @return number of fields that were left out because not even a truncated value fit into the document
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Start measuring the document size limit from the current position of the generator
+     */
+    void startDocument(CountingOutputStream out, JsonGenerator jsonGenerator) {
+        this.documentOut = out;
+        this.documentStart = position(jsonGenerator);
+    }
+
     void serializeProperty(JsonGenerator jsonGenerator, T event, AbstractPropertyAndEncoder<T> propertyAndEncoder) throws IOException {
         String value = propertyAndEncoder.encode(event);
         if (propertyAndEncoder.allowEmpty() || (value != null && !value.isEmpty())) {
@@ -13,9 +85,15 @@ class PropertySerializer<T> {
                 case INT:
                     serializeIntField(jsonGenerator, propertyAndEncoder, value);
                     break;
+                case LONG:
+                    serializeLongField(jsonGenerator, propertyAndEncoder, value);
+                    break;
                 case FLOAT:
                     serializeFloatField(jsonGenerator, propertyAndEncoder, value);
                     break;
+                case DOUBLE:
+                    serializeDoubleField(jsonGenerator, propertyAndEncoder, value);
+                    break;
                 case BOOLEAN:
                     serializeBooleanField(jsonGenerator, propertyAndEncoder, value);
                     break;
@@ -25,8 +103,162 @@ class PropertySerializer<T> {
         }
     }
 
+    /**
+     * Write a string field, truncated (with the truncation marker appended) to maxSize characters, or maxFieldSize
+     * if maxSize is not positive, and to the space left within maxDocumentSize. The document size is measured in
+     * UTF-8 bytes without counting JSON escapes, so it is approximate.
+     */
+    void writeStringField(JsonGenerator jsonGenerator, String name, String value, int maxSize) throws IOException {
+        if (value == null) {
+            jsonGenerator.writeObjectField(name, null);
+            return;
+        }
+        int length = allowedLength(jsonGenerator, name != null ? name.length() : 0, value, maxSize);
+        if (length == value.length()) {
+            jsonGenerator.writeObjectField(name, value);
+        } else if (length < 0) {
+            droppedCount.incrementAndGet();
+        } else {
+            jsonGenerator.writeFieldName(name);
+            writeTruncated(jsonGenerator, value, length);
+        }
+    }
+
+    /**
+     * Same as {@link #writeStringField(JsonGenerator, String, String, int)}, for a pre-encoded field name
+     */
+    void writeStringField(JsonGenerator jsonGenerator, SerializableString name, String value, int maxSize) throws IOException {
+        int length = allowedLength(jsonGenerator, name.charLength(), value, maxSize);
+        if (length == value.length()) {
+            jsonGenerator.writeFieldName(name);
+            jsonGenerator.writeString(value);
+        } else if (length < 0) {
+            droppedCount.incrementAndGet();
+        } else {
+            jsonGenerator.writeFieldName(name);
+            writeTruncated(jsonGenerator, value, length);
+        }
+    }
+
+    /**
+     * Write a field of the given type, falling back to a string field if the value can't be parsed as that type
+     */
+    void writeTypedField(JsonGenerator jsonGenerator, SerializableString name, String value, Property.Type type, int maxSize) throws IOException {
+        try {
+            switch (type) {
+                case INT:
+                    int intValue = Integer.parseInt(value);
+                    jsonGenerator.writeFieldName(name);
+                    jsonGenerator.writeNumber(intValue);
+                    return;
+                case LONG:
+                    long longValue = Long.parseLong(value);
+                    jsonGenerator.writeFieldName(name);
+                    jsonGenerator.writeNumber(longValue);
+                    return;
+                case FLOAT:
+                    float floatValue = Float.parseFloat(value);
+                    jsonGenerator.writeFieldName(name);
+                    jsonGenerator.writeNumber(floatValue);
+                    return;
+                case DOUBLE:
+                    double doubleValue = Double.parseDouble(value);
+                    jsonGenerator.writeFieldName(name);
+                    jsonGenerator.writeNumber(doubleValue);
+                    return;
+                case BOOLEAN:
+                    if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+                        jsonGenerator.writeFieldName(name);
+                        jsonGenerator.writeBoolean(Boolean.parseBoolean(value));
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // Sent as a string instead
+        }
+        writeStringField(jsonGenerator, name, value, maxSize);
+    }
+
+    private void writeTruncated(JsonGenerator jsonGenerator, String value, int length) throws IOException {
+        truncatedCount.incrementAndGet();
+        if (length > 0 && Character.isHighSurrogate(value.charAt(length - 1))) {
+            length--;
+        }
+        int total = length + truncationMarker.length;
+        if (scratch.length < total) {
+            scratch = new char[Math.max(total, scratch.length * 2)];
+        }
+        value.getChars(0, length, scratch, 0);
+        System.arraycopy(truncationMarker, 0, scratch, length, truncationMarker.length);
+        jsonGenerator.writeString(scratch, 0, total);
+    }
+
+    /**
+     * @return true if the value can be written without being truncated or dropped
+     */
+    boolean isWithinLimits(JsonGenerator jsonGenerator, String name, String value, int maxSize) {
+        return allowedLength(jsonGenerator, name != null ? name.length() : 0, value, maxSize) == value.length();
+    }
+
+    // Number of characters of the value that can be written (all of them, or fewer with room for the marker), or -1
+    // if the field doesn't fit at all
+    private int allowedLength(JsonGenerator jsonGenerator, int nameLength, String value, int maxSize) {
+        int limit = maxSize > 0 ? maxSize : maxFieldSize;
+        int length = value.length();
+        boolean truncated = false;
+        if (limit > 0 && length > limit) {
+            length = limit;
+            truncated = true;
+        }
+        if (maxDocumentSize <= 0 || documentOut == null) {
+            return length;
+        }
+
+        long remaining = maxDocumentSize - (position(jsonGenerator) - documentStart) - nameLength - FIELD_OVERHEAD;
+        if ((long) length * 3 + truncationMarkerBytes <= remaining) {
+            // Fits even if every character needs three bytes
+            return length;
+        }
+        if (!truncated && utf8Length(value, length) <= remaining) {
+            return length;
+        }
+        int fitting = fittingLength(value, length, remaining - truncationMarkerBytes);
+        return fitting > 0 ? fitting : -1;
+    }
+
+    private long position(JsonGenerator jsonGenerator) {
+        return documentOut.getCount() + Math.max(jsonGenerator.getOutputBuffered(), 0);
+    }
+
+    private static int utf8Length(String value, int length) {
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            bytes += utf8Length(value.charAt(i));
+        }
+        return bytes;
+    }
+
+    private static int fittingLength(String value, int length, long maxBytes) {
+        long bytes = 0;
+        for (int i = 0; i < length; i++) {
+            bytes += utf8Length(value.charAt(i));
+            if (bytes > maxBytes) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    // Surrogates are counted as 3 bytes each, which overestimates a pair (4 bytes) but never underestimates
+    private static int utf8Length(char c) {
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+    }
+
     private void serializeStringField(JsonGenerator jsonGenerator, AbstractPropertyAndEncoder<T> propertyAndEncoder, String value) throws IOException {
-        jsonGenerator.writeObjectField(propertyAndEncoder.getName(), value);
+        writeStringField(jsonGenerator, propertyAndEncoder.getName(), value, propertyAndEncoder.getMaxSize());
     }
 
     private void serializeIntField(JsonGenerator jsonGenerator, AbstractPropertyAndEncoder<T> propertyAndEncoder, String value) throws IOException {
@@ -37,6 +269,22 @@ class PropertySerializer<T> {
         }
     }
 
+    private void serializeLongField(JsonGenerator jsonGenerator, AbstractPropertyAndEncoder<T> propertyAndEncoder, String value) throws IOException {
+        try {
+            jsonGenerator.writeNumberField(propertyAndEncoder.getName(), Long.valueOf(value));
+        } catch (NumberFormatException e) {
+            serializeStringField(jsonGenerator, propertyAndEncoder, value);
+        }
+    }
+
+    private void serializeDoubleField(JsonGenerator jsonGenerator, AbstractPropertyAndEncoder<T> propertyAndEncoder, String value) throws IOException {
+        try {
+            jsonGenerator.writeNumberField(propertyAndEncoder.getName(), Double.valueOf(value));
+        } catch (NumberFormatException e) {
+            serializeStringField(jsonGenerator, propertyAndEncoder, value);
+        }
+    }
+
     private void serializeFloatField(JsonGenerator jsonGenerator, AbstractPropertyAndEncoder<T> propertyAndEncoder, String value) throws IOException {
         try {
             jsonGenerator.writeNumberField(propertyAndEncoder.getName(), Float.valueOf(value));
@@ -52,4 +300,4 @@ class PropertySerializer<T> {
             serializeStringField(jsonGenerator, propertyAndEncoder, value);
         }
     }
-}
\ No newline at end of file
+}
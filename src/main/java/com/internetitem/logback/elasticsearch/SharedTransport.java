@@ -0,0 +1,228 @@
+package com.internetitem.logback.elasticsearch;
+
+import com.internetitem.logback.elasticsearch.config.HttpRequestHeader;
+import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ByteBuilder;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.WorkerThreadFactory;
+import com.internetitem.logback.elasticsearch.writer.ElasticsearchWriter;
+import com.internetitem.logback.elasticsearch.writer.SafeWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One ElasticsearchWriter (with its send buffer, sender thread and connections) shared by all appenders in the JVM
+ * that send to the same urls, with the same authentication, headers and format. Every document carries its own
+ * action line, so documents from different appenders can go into the same bulk request as they are.
+ *
+ * Settings of the transport itself (timeouts, retries, node discovery, batching) are taken from the first appender
+ * to register. maxQueueSize is enforced for each appender separately, by the WriterPipeline that feeds its
+ * SharedWriter (which counts a batch until the transport has delivered it), so the transport itself never drops
+ * anything. Problems are reported to the appender that has been registered the longest.
+ */
+public class SharedTransport {
+
+	private static final Map<String, SharedTransport> TRANSPORTS = new HashMap<String, SharedTransport>();
+
+	private final String key;
+	private final ElasticsearchWriter writer;
+	private final WriterPipeline pipeline;
+
+	// Makes sure batches are handed to the pipeline in the order of their sequence numbers
+	private final ReentrantLock offerLock;
+	private long seq;
+
+	// Guarded by TRANSPORTS
+	private final List<SharedWriter> registered;
+
+	private SharedTransport(String key, Settings settings, HttpRequestHeaders headers, ErrorReporter errorReporter, WorkerThreadFactory threadFactory) {
+		this.key = key;
+		this.registered = new ArrayList<SharedWriter>();
+		ErrorReporter transportReporter = new TransportErrorReporter(settings, errorReporter);
+		this.writer = new ElasticsearchWriter(transportReporter, settings, headers, threadFactory);
+		this.pipeline = new WriterPipeline(writer, settings, transportReporter, threadFactory, Long.MAX_VALUE);
+		this.offerLock = new ReentrantLock();
+	}
+
+	/**
+	 * Get the transport for the given appender settings, creating it if this is the first appender to use it.
+	 * Must be matched by a call to SharedWriter.close().
+	 */
+	public static SharedWriter acquire(Settings settings, HttpRequestHeaders headers, ErrorReporter errorReporter, WorkerThreadFactory threadFactory) {
+		String key = keyOf(settings, headers);
+		synchronized (TRANSPORTS) {
+			SharedTransport transport = TRANSPORTS.get(key);
+			if (transport == null) {
+				transport = new SharedTransport(key, settings, headers, errorReporter, threadFactory);
+				TRANSPORTS.put(key, transport);
+			}
+			SharedWriter sharedWriter = transport.new SharedWriter(settings, errorReporter);
+			transport.registered.add(sharedWriter);
+			return sharedWriter;
+		}
+	}
+
+	// The urls include any user info, so appenders with different credentials never share a transport
+	private static String keyOf(Settings settings, HttpRequestHeaders headers) {
+		StringBuilder key = new StringBuilder();
+		key.append(settings.getUrls()).append('|').append(settings.getFormat());
+		if (settings.getAuthentication() != null) {
+			key.append('|').append(settings.getAuthentication().getClass().getName());
+		}
+		if (headers != null && headers.getHeaders() != null) {
+			for (HttpRequestHeader header : headers.getHeaders()) {
+				key.append('|').append(header.getName()).append('=').append(header.getValue());
+			}
+		}
+		return key.toString();
+	}
+
+	public ElasticsearchWriter getWriter() {
+		return writer;
+	}
+
+	private long offer(byte[] batch) {
+		offerLock.lock();
+		try {
+			pipeline.offer(batch, ++seq);
+			return seq;
+		} finally {
+			offerLock.unlock();
+		}
+	}
+
+	private void release(SharedWriter sharedWriter, long deadline) {
+		synchronized (TRANSPORTS) {
+			if (!registered.remove(sharedWriter) || !registered.isEmpty()) {
+				return;
+			}
+			TRANSPORTS.remove(key);
+		}
+		// Give anything still in flight a chance to be delivered before the sender thread is left to finish on its own
+		pipeline.awaitAcknowledged(seq, deadline);
+		try {
+			writer.close();
+		} catch (IOException e) {
+			// Nothing left to report it to
+		}
+	}
+
+	// The ErrorReporter of the appender that has been registered the longest (or of the last one, once all are gone)
+	private ErrorReporter currentErrorReporter(ErrorReporter fallback) {
+		synchronized (TRANSPORTS) {
+			return registered.isEmpty() ? fallback : registered.get(0).errorReporter;
+		}
+	}
+
+	/**
+	 * Passes everything on to an appender that is still registered, rather than to the one that happened to create
+	 * the transport
+	 */
+	private class TransportErrorReporter extends ErrorReporter {
+		private volatile ErrorReporter last;
+
+		TransportErrorReporter(Settings settings, ErrorReporter first) {
+			super(settings, first.getContext());
+			this.last = first;
+		}
+
+		private ErrorReporter current() {
+			ErrorReporter current = currentErrorReporter(last);
+			last = current;
+			return current;
+		}
+
+		@Override
+		public void logError(String message, Throwable e) {
+			current().logError(message, e);
+		}
+
+		@Override
+		public void logWarning(String message) {
+			current().logWarning(message);
+		}
+
+		@Override
+		public void logInfo(String message) {
+			current().logInfo(message);
+		}
+	}
+
+	/**
+	 * An appender's view of a shared transport. Takes the place of the appender's own ElasticsearchWriter: sendData()
+	 * hands the data over to the transport and returns once it has been sent (or after sleepTime, in which case it is
+	 * called again until hasPendingData() returns false). It only fails if an attempt of the transport that included
+	 * one of this appender's batches failed, whatever happens to the batches of other appenders.
+	 */
+	public class SharedWriter implements SafeWriter, Closeable {
+
+		private final Settings settings;
+		private final ErrorReporter errorReporter;
+		private final ByteBuilder buffer;
+
+		// Sequence numbers and sizes of batches handed to the transport, but not acknowledged yet
+		private final Deque<long[]> inFlight;
+		private long inFlightBytes;
+
+		private SharedWriter(Settings settings, ErrorReporter errorReporter) {
+			this.settings = settings;
+			this.errorReporter = errorReporter;
+			this.buffer = new ByteBuilder();
+			this.inFlight = new ArrayDeque<long[]>();
+		}
+
+		public SharedTransport getTransport() {
+			return SharedTransport.this;
+		}
+
+		// maxQueueSize is enforced by the WriterPipeline that feeds this writer
+		public synchronized void write(byte[] buf, int off, int len) {
+			buffer.append(buf, off, len);
+		}
+
+		public synchronized void sendData() throws IOException {
+			if (buffer.length() > 0) {
+				byte[] batch = buffer.toByteArray();
+				buffer.setLength(0);
+				inFlight.add(new long[] { offer(batch), batch.length });
+				inFlightBytes += batch.length;
+			}
+			if (inFlight.isEmpty()) {
+				return;
+			}
+
+			pipeline.awaitAcknowledged(inFlight.getLast()[0], System.currentTimeMillis() + settings.getSleepTime());
+			removeAcknowledged();
+
+			// Batches are sent in order, so if any of them failed, the oldest one did
+			if (!inFlight.isEmpty() && pipeline.isFailed(inFlight.getFirst()[0])) {
+				throw new IOException("Shared transport failed to send " + inFlightBytes + " bytes, will keep trying");
+			}
+		}
+
+		public synchronized boolean hasPendingData() {
+			removeAcknowledged();
+			return buffer.length() != 0 || !inFlight.isEmpty();
+		}
+
+		private void removeAcknowledged() {
+			while (!inFlight.isEmpty() && pipeline.isAcknowledged(inFlight.getFirst()[0])) {
+				inFlightBytes -= inFlight.removeFirst()[1];
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			release(this, System.currentTimeMillis() + settings.getShutdownTimeout());
+		}
+	}
+}
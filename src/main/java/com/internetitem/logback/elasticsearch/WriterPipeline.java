@@ -0,0 +1,355 @@
+package com.internetitem.logback.elasticsearch;
+
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.WorkerThreadFactory;
+import com.internetitem.logback.elasticsearch.writer.SafeWriter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feeds serialized batches to a single SafeWriter on its own thread, with its own retry state, so that a slow or
+ * failing output does not hold up (or count retries against) any other output.
+ *
+ * maxQueueSize is enforced here, for everything that is waiting for the output: batches not handed to the writer yet
+ * as well as those the writer still holds. A batch that doesn't fit is dropped, and the events in it are remembered as
+ * lost, so that flush() doesn't report them as delivered.
+ */
+public class WriterPipeline implements Runnable {
+
+	private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(1);
+	private static final int MAX_LOST_RANGES = 16;
+
+	private final SafeWriter writer;
+	private final String name;
+	private final Settings settings;
+	private final ErrorReporter errorReporter;
+	private final WorkerThreadFactory threadFactory;
+	private final long maxQueueSize;
+
+	// A Lock rather than a monitor, so that waiting doesn't pin a virtual thread to its carrier
+	private final ReentrantLock lock;
+	private final Condition changed;
+
+	// All guarded by lock
+	private List<byte[]> inbound;
+	private long inboundBytes;
+	// Written to the writer since it last had nothing pending
+	private long heldBytes;
+	private boolean inboundExceeded;
+	// Sequence number ranges (first exclusive, last inclusive) of dropped batches, oldest first
+	private Deque<long[]> lost;
+	private long inboundSeq;
+	private long acknowledgedSeq;
+	// Highest sequence number that was part of a failed sendData()
+	private long failedSeq;
+	private boolean working;
+	private boolean wakeRequested;
+	// Number of threads in awaitAcknowledged()
+	private int waiters;
+
+	private final AtomicLong successCount;
+	private final AtomicLong failureCount;
+
+	public WriterPipeline(SafeWriter writer, Settings settings, ErrorReporter errorReporter, WorkerThreadFactory threadFactory) {
+		this(writer, settings, errorReporter, threadFactory, settings.getMaxQueueSize());
+	}
+
+	/**
+	 * @param maxQueueSize maximum number of bytes waiting for the output (see class comment)
+	 */
+	public WriterPipeline(SafeWriter writer, Settings settings, ErrorReporter errorReporter, WorkerThreadFactory threadFactory, long maxQueueSize) {
+		this.writer = writer;
+		this.name = writer.getClass().getSimpleName();
+		this.settings = settings;
+		this.errorReporter = errorReporter;
+		this.threadFactory = threadFactory;
+		this.maxQueueSize = maxQueueSize;
+		this.lock = new ReentrantLock();
+		this.changed = lock.newCondition();
+		this.inbound = new ArrayList<byte[]>();
+		this.lost = new ArrayDeque<long[]>();
+		this.successCount = new AtomicLong();
+		this.failureCount = new AtomicLong();
+	}
+
+	public SafeWriter getWriter() {
+		return writer;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return number of successful sendData() calls
+	 */
+	public long getSuccessCount() {
+		return successCount.get();
+	}
+
+	/**
+	 * @return number of failed sendData() calls
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * Hand a serialized batch to this pipeline. The array is shared with other pipelines and must not be modified.
+	 *
+	 * @param batch serialized data (may be empty)
+	 * @param seq sequence number of the last event contained in the batch
+	 * @return false if the batch was dropped because it didn't fit into maxQueueSize
+	 */
+	public boolean offer(byte[] batch, long seq) {
+		lock.lock();
+		try {
+			boolean accepted = true;
+			if (batch.length > 0) {
+				if (inboundBytes + heldBytes + batch.length > maxQueueSize) {
+					if (!inboundExceeded) {
+						errorReporter.logWarning("Output queue for " + name + " exceeded maximum size - log messages will be lost until it catches up");
+						inboundExceeded = true;
+					}
+					addLost(inboundSeq, seq);
+					accepted = false;
+				} else {
+					inbound.add(batch);
+					inboundBytes += batch.length;
+				}
+			}
+			inboundSeq = seq;
+			if (!working) {
+				startWorker();
+			}
+			changed.signalAll();
+			return accepted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param from sequence number after which to look
+	 * @param to last sequence number to look at
+	 * @return true if any batch with events after from, up to and including to, was dropped. Dropped batches up to from
+	 * are forgotten, so from should only ever grow.
+	 */
+	public boolean isLost(long from, long to) {
+		lock.lock();
+		try {
+			boolean found = false;
+			for (Iterator<long[]> it = lost.iterator(); it.hasNext(); ) {
+				long[] range = it.next();
+				if (range[1] <= from) {
+					it.remove();
+				} else if (range[0] < to) {
+					found = true;
+				}
+			}
+			return found;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Must be called while holding lock. Ranges that follow each other are merged, and the oldest ones are merged once
+	// there are too many (making them cover a bit more than what was lost), so this never grows without bound.
+	private void addLost(long first, long last) {
+		long[] latest = lost.peekLast();
+		if (latest != null && latest[1] >= first) {
+			latest[1] = last;
+			return;
+		}
+		lost.addLast(new long[] { first, last });
+		if (lost.size() > MAX_LOST_RANGES) {
+			long[] oldest = lost.removeFirst();
+			lost.peekFirst()[0] = oldest[0];
+		}
+	}
+
+	/**
+	 * Wait until every batch up to the given sequence number has been delivered by this pipeline's writer (or was
+	 * dropped, see isLost())
+	 *
+	 * @param seq sequence number to wait for
+	 * @param deadline absolute time (in ms) to give up at
+	 * @return true if everything up to seq was dealt with before the deadline
+	 */
+	public boolean awaitAcknowledged(long seq, long deadline) {
+		lock.lock();
+		try {
+			while (acknowledgedSeq < seq) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wakeRequested = true;
+				if (!working) {
+					// Restart a worker that gave up after maxRetries
+					startWorker();
+				}
+				changed.signalAll();
+				waiters++;
+				try {
+					changed.await(remaining, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} finally {
+					waiters--;
+				}
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param seq sequence number passed to offer()
+	 * @return true if everything up to seq has been delivered
+	 */
+	public boolean isAcknowledged(long seq) {
+		lock.lock();
+		try {
+			return acknowledgedSeq >= seq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param seq sequence number passed to offer()
+	 * @return true if the batch with this sequence number hasn't been delivered yet, and a sendData() that included
+	 * it failed
+	 */
+	public boolean isFailed(long seq) {
+		lock.lock();
+		try {
+			return acknowledgedSeq < seq && failedSeq >= seq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Must be called while holding lock
+	private void startWorker() {
+		working = true;
+		Thread thread = threadFactory.newThread(this, AbstractElasticsearchPublisher.THREAD_NAME_PREFIX + name + "-" + THREAD_COUNTER.getAndIncrement());
+		thread.start();
+	}
+
+	// Must be called while holding lock, once the writer has nothing pending anymore
+	private void acknowledge(long seq) {
+		heldBytes = 0;
+		inboundExceeded = false;
+		if (seq > acknowledgedSeq) {
+			acknowledgedSeq = seq;
+		}
+		changed.signalAll();
+	}
+
+	private void waitForWork() throws InterruptedException {
+		lock.lock();
+		try {
+			if (inbound.isEmpty() && !wakeRequested) {
+				changed.await(settings.getSleepTime(), TimeUnit.MILLISECONDS);
+			}
+			wakeRequested = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void run() {
+		int currentTry = 1;
+		int maxRetries = settings.getMaxRetries();
+		while (true) {
+			try {
+				waitForWork();
+
+				List<byte[]> batches = null;
+				long seq;
+				lock.lock();
+				try {
+					if (!inbound.isEmpty()) {
+						batches = inbound;
+						inbound = new ArrayList<byte[]>();
+						heldBytes += inboundBytes;
+						inboundBytes = 0;
+						currentTry = 1;
+					}
+					seq = inboundSeq;
+
+					if (batches == null) {
+						if (!writer.hasPendingData()) {
+							// all done
+							acknowledge(seq);
+							working = false;
+							return;
+						} else if (currentTry > maxRetries) {
+							// Oh well, better luck next time
+							working = false;
+							changed.signalAll();
+							return;
+						}
+					}
+				} finally {
+					lock.unlock();
+				}
+
+				if (batches != null) {
+					for (byte[] batch : batches) {
+						writer.write(batch, 0, batch.length);
+					}
+				}
+
+				try {
+					writer.sendData();
+					successCount.incrementAndGet();
+					boolean pending = writer.hasPendingData();
+					lock.lock();
+					try {
+						if (!pending) {
+							acknowledge(seq);
+						} else if (waiters > 0) {
+							// The wake up may have been used by this round already, don't make anyone wait for sleepTime
+							wakeRequested = true;
+						}
+					} finally {
+						lock.unlock();
+					}
+				} catch (IOException e) {
+					failureCount.incrementAndGet();
+					lock.lock();
+					try {
+						failedSeq = Math.max(failedSeq, seq);
+					} finally {
+						lock.unlock();
+					}
+					currentTry++;
+					errorReporter.logWarning("Failed to send events to " + name + ": " + e.getMessage());
+					if (settings.isErrorsToStderr()) {
+						System.err.println("[" + new Date().toString() + "] Failed to send events to " + name + ": " + e.getMessage());
+					}
+				}
+			} catch (Exception e) {
+				errorReporter.logError("Internal error handling log data: " + e.getMessage(), e);
+				currentTry++;
+			}
+		}
+	}
+}
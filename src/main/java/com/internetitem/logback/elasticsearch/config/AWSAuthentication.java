@@ -1,8 +1,8 @@
 package com.internetitem.logback.elasticsearch.config;
 
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -14,35 +14,84 @@ import java.util.Map;
 import com.amazonaws.ReadLimitInfo;
 import com.amazonaws.SignableRequest;
 import com.amazonaws.auth.AWS4Signer;
-import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.http.HttpMethodName;
 import com.amazonaws.regions.DefaultAwsRegionProviderChain;
-import com.amazonaws.util.StringInputStream;
+import com.amazonaws.util.BinaryUtils;
 
 /**
  * This class implements Amazon AWS v4 Signature signing for ElasticSearch.
  *
+ * The payload hash is computed by the writer while the payload is buffered, so the body is not read again for
+ * signing. Derived signing keys are cached per day/region by AWS4Signer itself. Credentials are requested from the
+ * provider chain for every request, which lets temporary (e.g. STS or instance profile) credentials be refreshed by
+ * their providers before they expire.
+ *
+ * The region (unless configured) is only resolved when the first request is signed, on the thread sending it, since
+ * the default provider chain may take seconds to time out on the instance metadata service when not running on EC2.
+ * If that fails, the request fails like any other and the region is resolved again for the next attempt.
+ *
  * @author blagerweij
  */
-public class AWSAuthentication implements Authentication {
+public class AWSAuthentication implements PayloadSigningAuthentication {
 
-    private final AWS4Signer signer;
-    private final AWSCredentials credentials;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final AWSCredentialsProvider credentialsProvider;
+    private volatile String region;
+    private volatile AWS4Signer signer;
 
     public AWSAuthentication() {
-        signer = new AWS4Signer(false);
-        signer.setServiceName("es");
-        signer.setRegionName(new DefaultAwsRegionProviderChain().getRegion());
-        AWSCredentialsProvider credsProvider = new DefaultAWSCredentialsProviderChain();
-        credentials = credsProvider.getCredentials();
+        credentialsProvider = new DefaultAWSCredentialsProviderChain();
+    }
+
+    /**
+     * @param region the AWS region of the domain, instead of resolving it through the default provider chain
+     */
+    public void setRegion(String region) {
+        this.region = region;
+    }
+
+    private AWS4Signer getSigner() {
+        AWS4Signer result = signer;
+        if (result == null) {
+            synchronized (this) {
+                result = signer;
+                if (result == null) {
+                    result = new PrecomputedHashSigner();
+                    result.setServiceName("es");
+                    result.setRegionName(region != null ? region : new DefaultAwsRegionProviderChain().getRegion());
+                    signer = result;
+                }
+            }
+        }
+        return result;
     }
 
     @Override
     public void addAuth(HttpURLConnection urlConnection, String body) {
+        byte[] bytes = body.getBytes(UTF_8);
+        addAuth(urlConnection, bytes.length, BinaryUtils.toHex(getSigner().hash(bytes)));
+    }
+
+    @Override
+    public void addAuth(HttpURLConnection urlConnection, long contentLength, String payloadSha256) {
+        getSigner().sign(new URLConnectionSignableRequest(urlConnection, contentLength, payloadSha256), credentialsProvider.getCredentials());
+    }
 
-        signer.sign(new URLConnectionSignableRequest(urlConnection, body), credentials);
+    /**
+     * Uses the payload hash carried by the request, rather than reading and hashing the content
+     */
+    private static class PrecomputedHashSigner extends AWS4Signer {
+        PrecomputedHashSigner() {
+            super(false);
+        }
+
+        @Override
+        protected String calculateContentHash(SignableRequest<?> request) {
+            return ((URLConnectionSignableRequest) request).payloadSha256;
+        }
     }
 
     /**
@@ -51,21 +100,22 @@ public class AWSAuthentication implements Authentication {
     private static class URLConnectionSignableRequest implements SignableRequest<HttpURLConnection> {
 
         private final HttpURLConnection urlConnection;
-        private final String body;
+        private final String payloadSha256;
         private final Map<String,String> headers = new HashMap<>();
 
-        public URLConnectionSignableRequest(HttpURLConnection urlConnection, String body) {
+        public URLConnectionSignableRequest(HttpURLConnection urlConnection, long contentLength, String payloadSha256) {
             this.urlConnection = urlConnection;
-            this.body = body;
+            this.payloadSha256 = payloadSha256;
             addHeader("User-Agent","ElasticSearchWriter/1.0");
             addHeader("Accept","*/*");
-            addHeader("Content-Type","application/json");
-            addHeader("Content-Length",String.valueOf(body.length()));
+            String contentType = urlConnection.getRequestProperty("Content-Type");
+            addHeader("Content-Type", contentType != null ? contentType : "application/json");
+            addHeader("Content-Length",String.valueOf(contentLength));
         }
 
         @Override
         public void addHeader(String name, String value) {
-            this.urlConnection.addRequestProperty(name, value);
+            this.urlConnection.setRequestProperty(name, value);
             headers.put(name,value);
         }
 
@@ -111,12 +161,8 @@ public class AWSAuthentication implements Authentication {
 
         @Override
         public InputStream getContent() {
-            try {
-                return new StringInputStream(body);
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
-
+            // The payload hash is precomputed, see PrecomputedHashSigner
+            return null;
         }
 
         @Override
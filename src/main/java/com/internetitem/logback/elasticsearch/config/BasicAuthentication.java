@@ -4,8 +4,12 @@ import com.internetitem.logback.elasticsearch.util.Base64;
 
 import java.net.HttpURLConnection;
 
-public class BasicAuthentication implements Authentication {
+public class BasicAuthentication implements HeaderAuthentication {
     public void addAuth(HttpURLConnection urlConnection, String body) {
+        addAuth(urlConnection);
+    }
+
+    public void addAuth(HttpURLConnection urlConnection) {
         String userInfo = urlConnection.getURL().getUserInfo();
         if (userInfo != null) {
             String basicAuth = "Basic " + Base64.encode(userInfo.getBytes());
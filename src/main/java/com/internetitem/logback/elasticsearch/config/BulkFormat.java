@@ -0,0 +1,32 @@
+package com.internetitem.logback.elasticsearch.config;
+
+/**
+ * Encoding of the bulk payload
+ */
+public enum BulkFormat {
+	JSON("application/json", (byte) '\n'),
+	/**
+	 * Jackson's binary JSON format, each document is written with its own header and followed by the 0xFF stream
+	 * separator that Elasticsearch expects between SMILE documents
+	 */
+	SMILE("application/smile", (byte) 0xFF);
+
+	private final String contentType;
+	private final byte separator;
+
+	BulkFormat(String contentType, byte separator) {
+		this.contentType = contentType;
+		this.separator = separator;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return the byte that terminates each action and document in the bulk payload
+	 */
+	public byte getSeparator() {
+		return separator;
+	}
+}
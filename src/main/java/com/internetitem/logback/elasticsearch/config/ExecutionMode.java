@@ -0,0 +1,16 @@
+package com.internetitem.logback.elasticsearch.config;
+
+/**
+ * Kind of threads used for serializing and sending events
+ */
+public enum ExecutionMode {
+	PLATFORM,
+	/**
+	 * Virtual threads, which need Java 21 or later
+	 */
+	VIRTUAL,
+	/**
+	 * Virtual threads if the runtime supports them, platform threads otherwise
+	 */
+	AUTO
+}
@@ -0,0 +1,15 @@
+package com.internetitem.logback.elasticsearch.config;
+
+/**
+ * What the file output writes for each document
+ */
+public enum FileFormat {
+	/**
+	 * The action line followed by the document, exactly as it would be sent to the Bulk API
+	 */
+	BULK,
+	/**
+	 * Only the document, one per line
+	 */
+	DOCUMENTS
+}
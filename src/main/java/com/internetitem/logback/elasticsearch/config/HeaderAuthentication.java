@@ -0,0 +1,18 @@
+package com.internetitem.logback.elasticsearch.config;
+
+import java.net.HttpURLConnection;
+
+/**
+ * An authentication scheme that doesn't need the request payload at all (e.g. one that only adds a header), so that it
+ * can be used with streamingUpload (where the payload isn't known when the request is opened) and the SMILE format
+ * (where the payload isn't text). Other schemes that implement only Authentication are always given the whole payload
+ * as a String, and so are only used with buffered JSON uploads.
+ */
+public interface HeaderAuthentication extends Authentication {
+    /**
+     * Modify the given urlConnection for whatever authentication scheme is used.
+     *
+     * @param urlConnection the connection to the server
+     */
+    void addAuth(HttpURLConnection urlConnection);
+}
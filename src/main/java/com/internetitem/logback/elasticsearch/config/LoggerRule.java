@@ -0,0 +1,55 @@
+package com.internetitem.logback.elasticsearch.config;
+
+public class LoggerRule {
+	private String logger;
+	private String level;
+	private String index;
+	private Boolean enabled;
+
+	public LoggerRule() {
+	}
+
+	public LoggerRule(String logger, boolean enabled) {
+		this.logger = logger;
+		this.enabled = enabled;
+	}
+
+	public String getLogger() {
+		return logger;
+	}
+
+	public void setLogger(String logger) {
+		this.logger = logger;
+	}
+
+	public String getLevel() {
+		return level;
+	}
+
+	public void setLevel(String level) {
+		this.level = level;
+	}
+
+	public String getIndex() {
+		return index;
+	}
+
+	public void setIndex(String index) {
+		this.index = index;
+	}
+
+	public boolean isEnabled() {
+		return enabled == null || enabled;
+	}
+
+	/**
+	 * @return null if not set, so that a less specific rule can decide
+	 */
+	public Boolean getEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(Boolean enabled) {
+		this.enabled = enabled;
+	}
+}
@@ -0,0 +1,22 @@
+package com.internetitem.logback.elasticsearch.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoggerRules {
+
+	private List<LoggerRule> rules;
+
+	public LoggerRules() {
+		this.rules = new ArrayList<LoggerRule>();
+	}
+
+	public List<LoggerRule> getRules() {
+		return rules;
+	}
+
+	public void addRule(LoggerRule rule) {
+		rules.add(rule);
+	}
+
+}
@@ -0,0 +1,18 @@
+package com.internetitem.logback.elasticsearch.config;
+
+import java.net.HttpURLConnection;
+
+/**
+ * An authentication scheme that signs a hash of the request payload. The writer computes the hash incrementally while
+ * the payload is being buffered and passes it in, instead of handing over the whole body as a String.
+ */
+public interface PayloadSigningAuthentication extends Authentication {
+    /**
+     * Modify the given urlConnection for whatever authentication scheme is used.
+     *
+     * @param urlConnection the connection to the server
+     * @param contentLength the length (in bytes) of the UTF-8 encoded message being sent
+     * @param payloadSha256 the hex-encoded SHA-256 of the UTF-8 encoded message being sent
+     */
+    void addAuth(HttpURLConnection urlConnection, long contentLength, String payloadSha256);
+}
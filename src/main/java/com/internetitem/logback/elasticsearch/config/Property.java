@@ -5,9 +5,24 @@ public class Property {
 	private String value;
 	private boolean allowEmpty;
 	private Type type = Type.STRING;
+	private int maxSize = -1;
 
 	public enum Type {
-		STRING, INT, FLOAT, BOOLEAN
+		STRING, INT, LONG, FLOAT, DOUBLE, BOOLEAN;
+
+		/**
+		 * @return the type with the given (case insensitive) name, with "bool" for BOOLEAN, or STRING if unknown
+		 */
+		public static Type parse(String type) {
+			if ("bool".equalsIgnoreCase(type)) {
+				return BOOLEAN;
+			}
+			try {
+				return Enum.valueOf(Type.class, type.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				return STRING;
+			}
+		}
 	}
 
 	public Property() {
@@ -43,15 +58,19 @@ public class Property {
 		this.allowEmpty = allowEmpty;
 	}
 
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
 	public Type getType() {
 		return type;
 	}
 
 	public void setType(String type) {
-		try {
-			this.type = Enum.valueOf(Type.class, type.toUpperCase());
-		} catch (IllegalArgumentException e) {
-			this.type = Type.STRING;
-		}
+		this.type = Type.parse(type);
 	}
 }
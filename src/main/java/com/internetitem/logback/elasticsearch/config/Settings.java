@@ -1,12 +1,22 @@
 package com.internetitem.logback.elasticsearch.config;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class Settings {
 
 	private String index;
 	private String type;
+	private String routing;
+	private String pipeline;
+	private String opType;
+	private String documentId;
+	private boolean generateDocumentIds;
+	private boolean sortByRouting;
 	private URL url;
+	private List<URL> urls = new ArrayList<URL>();
 
 	private String loggerName;
 	private String errorLoggerName;
@@ -19,10 +29,54 @@ public class Settings {
 	private boolean errorsToStderr;
 	private boolean includeCallerData;
 	private boolean includeMdc;
+	private List<String> mdcIncludeKeys = new ArrayList<String>();
+	private List<String> mdcExcludeKeys = new ArrayList<String>();
+	private List<String> mdcFields = new ArrayList<String>();
+	private String mdcPrefix;
 	private boolean rawJsonMessage;
+	private String rawJsonFallbackField;
 	private int maxQueueSize = 100 * 1024 * 1024;
 	private Authentication authentication;
 	private int maxMessageSize = -1;
+	private int shutdownTimeout = 5000;
+	private boolean registerShutdownHook;
+	private int nodePenaltyTime = 30000;
+	private boolean discoverNodes;
+	private int nodeDiscoveryInterval = 5 * 60 * 1000;
+	private String file;
+	private FileFormat fileFormat = FileFormat.BULK;
+	private long maxFileSize = 100 * 1024 * 1024;
+	private long fileRolloverInterval;
+	private int fileSyncInterval = 1000;
+	private String deadLetterFile;
+	private boolean streamingUpload;
+	private int streamingChunkSize = 64 * 1024;
+	private BulkFormat format = BulkFormat.JSON;
+	private int maxFieldSize = -1;
+	private int maxDocumentSize = -1;
+	private String truncationMarker = "..";
+	private List<String> accessFields = new ArrayList<String>();
+	private List<String> requestHeaders = new ArrayList<String>();
+	private List<String> responseHeaders = new ArrayList<String>();
+	private boolean includeRequestContent;
+	private boolean includeResponseContent;
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+	private int serializationThreads = 1;
+	private int serializationSliceSize = 1000;
+	private int heapPressureThreshold = -1;
+	private int heapPressureRecovery = -1;
+	private String priorityLevel;
+	private String priorityMarker;
+	private boolean adaptiveBatching;
+	private int minBatchSize = 100;
+	private int maxBatchSize = -1;
+	private int maxConcurrency = 4;
+	private long targetLatency = 1000;
+	private boolean sharedTransport;
+	private int bufferSegmentSize = 64 * 1024;
+	private boolean directBuffers;
+	private int bufferPoolSize = 4 * 1024 * 1024;
+	private long bufferIdleTimeout = 60000;
 
 	public String getIndex() {
 		return index;
@@ -40,6 +94,54 @@ public class Settings {
 		this.type = type;
 	}
 
+	public String getRouting() {
+		return routing;
+	}
+
+	public void setRouting(String routing) {
+		this.routing = routing;
+	}
+
+	public String getPipeline() {
+		return pipeline;
+	}
+
+	public void setPipeline(String pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	public String getOpType() {
+		return opType;
+	}
+
+	public void setOpType(String opType) {
+		this.opType = opType;
+	}
+
+	public String getDocumentId() {
+		return documentId;
+	}
+
+	public void setDocumentId(String documentId) {
+		this.documentId = documentId;
+	}
+
+	public boolean isGenerateDocumentIds() {
+		return generateDocumentIds;
+	}
+
+	public void setGenerateDocumentIds(boolean generateDocumentIds) {
+		this.generateDocumentIds = generateDocumentIds;
+	}
+
+	public boolean isSortByRouting() {
+		return sortByRouting;
+	}
+
+	public void setSortByRouting(boolean sortByRouting) {
+		this.sortByRouting = sortByRouting;
+	}
+
 	public int getSleepTime() {
 		return sleepTime;
 	}
@@ -123,6 +225,26 @@ public class Settings {
 		this.url = url;
 	}
 
+	/**
+	 * @return all configured node URLs: the single url (if set) followed by any added via addUrl
+	 */
+	public List<URL> getUrls() {
+		if (url == null) {
+			return urls;
+		}
+		if (urls.isEmpty()) {
+			return Collections.singletonList(url);
+		}
+		List<URL> all = new ArrayList<URL>();
+		all.add(url);
+		all.addAll(urls);
+		return all;
+	}
+
+	public void addUrl(URL url) {
+		this.urls.add(url);
+	}
+
 	public String getErrorLoggerName() {
 		return errorLoggerName;
 	}
@@ -139,6 +261,14 @@ public class Settings {
 		this.rawJsonMessage = rawJsonMessage;
 	}
 
+	public String getRawJsonFallbackField() {
+		return rawJsonFallbackField;
+	}
+
+	public void setRawJsonFallbackField(String rawJsonFallbackField) {
+		this.rawJsonFallbackField = rawJsonFallbackField;
+	}
+
 	public Authentication getAuthentication() {
 		return authentication;
 	}
@@ -162,4 +292,348 @@ public class Settings {
 	public void setMaxMessageSize(int maxMessageSize) {
 		this.maxMessageSize = maxMessageSize;
 	}
+
+	public int getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	public void setShutdownTimeout(int shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public boolean isRegisterShutdownHook() {
+		return registerShutdownHook;
+	}
+
+	public void setRegisterShutdownHook(boolean registerShutdownHook) {
+		this.registerShutdownHook = registerShutdownHook;
+	}
+
+	public int getNodePenaltyTime() {
+		return nodePenaltyTime;
+	}
+
+	public void setNodePenaltyTime(int nodePenaltyTime) {
+		this.nodePenaltyTime = nodePenaltyTime;
+	}
+
+	public boolean isDiscoverNodes() {
+		return discoverNodes;
+	}
+
+	public void setDiscoverNodes(boolean discoverNodes) {
+		this.discoverNodes = discoverNodes;
+	}
+
+	public int getNodeDiscoveryInterval() {
+		return nodeDiscoveryInterval;
+	}
+
+	public void setNodeDiscoveryInterval(int nodeDiscoveryInterval) {
+		this.nodeDiscoveryInterval = nodeDiscoveryInterval;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	public FileFormat getFileFormat() {
+		return fileFormat;
+	}
+
+	public void setFileFormat(FileFormat fileFormat) {
+		this.fileFormat = fileFormat;
+	}
+
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	public long getFileRolloverInterval() {
+		return fileRolloverInterval;
+	}
+
+	public void setFileRolloverInterval(long fileRolloverInterval) {
+		this.fileRolloverInterval = fileRolloverInterval;
+	}
+
+	public int getFileSyncInterval() {
+		return fileSyncInterval;
+	}
+
+	public void setFileSyncInterval(int fileSyncInterval) {
+		this.fileSyncInterval = fileSyncInterval;
+	}
+
+	public boolean isStreamingUpload() {
+		return streamingUpload;
+	}
+
+	public void setStreamingUpload(boolean streamingUpload) {
+		this.streamingUpload = streamingUpload;
+	}
+
+	public int getStreamingChunkSize() {
+		return streamingChunkSize;
+	}
+
+	public void setStreamingChunkSize(int streamingChunkSize) {
+		this.streamingChunkSize = streamingChunkSize;
+	}
+
+	public BulkFormat getFormat() {
+		return format;
+	}
+
+	public void setFormat(BulkFormat format) {
+		this.format = format;
+	}
+
+	public int getMaxFieldSize() {
+		return maxFieldSize;
+	}
+
+	public void setMaxFieldSize(int maxFieldSize) {
+		this.maxFieldSize = maxFieldSize;
+	}
+
+	public int getMaxDocumentSize() {
+		return maxDocumentSize;
+	}
+
+	public void setMaxDocumentSize(int maxDocumentSize) {
+		this.maxDocumentSize = maxDocumentSize;
+	}
+
+	public String getTruncationMarker() {
+		return truncationMarker;
+	}
+
+	public void setTruncationMarker(String truncationMarker) {
+		this.truncationMarker = truncationMarker;
+	}
+
+	public List<String> getAccessFields() {
+		return accessFields;
+	}
+
+	public void addAccessField(String accessField) {
+		this.accessFields.add(accessField);
+	}
+
+	public List<String> getRequestHeaders() {
+		return requestHeaders;
+	}
+
+	public void addRequestHeader(String requestHeader) {
+		this.requestHeaders.add(requestHeader);
+	}
+
+	public List<String> getResponseHeaders() {
+		return responseHeaders;
+	}
+
+	public void addResponseHeader(String responseHeader) {
+		this.responseHeaders.add(responseHeader);
+	}
+
+	public boolean isIncludeRequestContent() {
+		return includeRequestContent;
+	}
+
+	public void setIncludeRequestContent(boolean includeRequestContent) {
+		this.includeRequestContent = includeRequestContent;
+	}
+
+	public boolean isIncludeResponseContent() {
+		return includeResponseContent;
+	}
+
+	public void setIncludeResponseContent(boolean includeResponseContent) {
+		this.includeResponseContent = includeResponseContent;
+	}
+
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	public void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+	}
+
+	public boolean isAdaptiveBatching() {
+		return adaptiveBatching;
+	}
+
+	public void setAdaptiveBatching(boolean adaptiveBatching) {
+		this.adaptiveBatching = adaptiveBatching;
+	}
+
+	public int getMinBatchSize() {
+		return minBatchSize;
+	}
+
+	public void setMinBatchSize(int minBatchSize) {
+		this.minBatchSize = minBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public long getTargetLatency() {
+		return targetLatency;
+	}
+
+	public void setTargetLatency(long targetLatency) {
+		this.targetLatency = targetLatency;
+	}
+
+	public boolean isSharedTransport() {
+		return sharedTransport;
+	}
+
+	public void setSharedTransport(boolean sharedTransport) {
+		this.sharedTransport = sharedTransport;
+	}
+
+	public int getBufferSegmentSize() {
+		return bufferSegmentSize;
+	}
+
+	public void setBufferSegmentSize(int bufferSegmentSize) {
+		this.bufferSegmentSize = bufferSegmentSize;
+	}
+
+	public boolean isDirectBuffers() {
+		return directBuffers;
+	}
+
+	public void setDirectBuffers(boolean directBuffers) {
+		this.directBuffers = directBuffers;
+	}
+
+	public int getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+
+	public void setBufferPoolSize(int bufferPoolSize) {
+		this.bufferPoolSize = bufferPoolSize;
+	}
+
+	public long getBufferIdleTimeout() {
+		return bufferIdleTimeout;
+	}
+
+	public void setBufferIdleTimeout(long bufferIdleTimeout) {
+		this.bufferIdleTimeout = bufferIdleTimeout;
+	}
+
+	public List<String> getMdcIncludeKeys() {
+		return mdcIncludeKeys;
+	}
+
+	public void addMdcIncludeKey(String mdcIncludeKey) {
+		this.mdcIncludeKeys.add(mdcIncludeKey);
+	}
+
+	public List<String> getMdcExcludeKeys() {
+		return mdcExcludeKeys;
+	}
+
+	public void addMdcExcludeKey(String mdcExcludeKey) {
+		this.mdcExcludeKeys.add(mdcExcludeKey);
+	}
+
+	public List<String> getMdcFields() {
+		return mdcFields;
+	}
+
+	public void addMdcField(String mdcField) {
+		this.mdcFields.add(mdcField);
+	}
+
+	public String getMdcPrefix() {
+		return mdcPrefix;
+	}
+
+	public void setMdcPrefix(String mdcPrefix) {
+		this.mdcPrefix = mdcPrefix;
+	}
+
+	public String getDeadLetterFile() {
+		return deadLetterFile;
+	}
+
+	public void setDeadLetterFile(String deadLetterFile) {
+		this.deadLetterFile = deadLetterFile;
+	}
+
+	public int getSerializationThreads() {
+		return serializationThreads;
+	}
+
+	public void setSerializationThreads(int serializationThreads) {
+		this.serializationThreads = serializationThreads;
+	}
+
+	public int getSerializationSliceSize() {
+		return serializationSliceSize;
+	}
+
+	public void setSerializationSliceSize(int serializationSliceSize) {
+		this.serializationSliceSize = serializationSliceSize;
+	}
+
+	public int getHeapPressureThreshold() {
+		return heapPressureThreshold;
+	}
+
+	public void setHeapPressureThreshold(int heapPressureThreshold) {
+		this.heapPressureThreshold = heapPressureThreshold;
+	}
+
+	public int getHeapPressureRecovery() {
+		return heapPressureRecovery;
+	}
+
+	public void setHeapPressureRecovery(int heapPressureRecovery) {
+		this.heapPressureRecovery = heapPressureRecovery;
+	}
+
+	public String getPriorityLevel() {
+		return priorityLevel;
+	}
+
+	public void setPriorityLevel(String priorityLevel) {
+		this.priorityLevel = priorityLevel;
+	}
+
+	public String getPriorityMarker() {
+		return priorityMarker;
+	}
+
+	public void setPriorityMarker(String priorityMarker) {
+		this.priorityMarker = priorityMarker;
+	}
 }
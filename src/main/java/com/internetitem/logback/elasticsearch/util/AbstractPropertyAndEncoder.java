@@ -7,6 +7,8 @@ import com.internetitem.logback.elasticsearch.config.Property;
 public abstract class AbstractPropertyAndEncoder<T> {
 	private Property property;
 	private PatternLayoutBase<T> layout;
+	// Patterns without any conversion word always produce the same value, which is only worked out once
+	private String constantValue;
 
 	public AbstractPropertyAndEncoder(Property property, Context context) {
 		this.property = property;
@@ -16,14 +18,28 @@ public abstract class AbstractPropertyAndEncoder<T> {
 		this.layout.setPattern(property.getValue());
 		this.layout.setPostCompileProcessor(null);
 		this.layout.start();
+
+		if (property.getValue() != null && property.getValue().indexOf('%') < 0) {
+			this.constantValue = layout.doLayout(null);
+		}
 	}
 
 	protected abstract PatternLayoutBase<T> getLayout();
 
 	public String encode(T event) {
+		if (constantValue != null) {
+			return constantValue;
+		}
 		return layout.doLayout(event);
 	}
 
+	/**
+	 * @return true if the value does not depend on the event
+	 */
+	public boolean isConstant() {
+		return constantValue != null;
+	}
+
 	public String getName() {
 		return property.getName();
 	}
@@ -32,6 +48,10 @@ public abstract class AbstractPropertyAndEncoder<T> {
 		return property.isAllowEmpty();
 	}
 
+	public int getMaxSize() {
+		return property.getMaxSize();
+	}
+
 	public Property.Type getType() {
 		return property.getType();
 	}
@@ -0,0 +1,73 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable byte array, the byte equivalent of StringBuilder for the serialized bulk data
+ */
+public class ByteBuilder {
+
+	private byte[] data;
+	private int length;
+
+	public ByteBuilder() {
+		this(8192);
+	}
+
+	public ByteBuilder(int initialCapacity) {
+		this.data = new byte[initialCapacity];
+	}
+
+	public void append(byte[] buf, int off, int len) {
+		ensureCapacity(length + len);
+		System.arraycopy(buf, off, data, length, len);
+		length += len;
+	}
+
+	public void append(byte b) {
+		ensureCapacity(length + 1);
+		data[length++] = b;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public void setLength(int length) {
+		this.length = length;
+	}
+
+	/**
+	 * @return the backing array, valid up to length(); only until the next modification
+	 */
+	public byte[] array() {
+		return data;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(data, length);
+	}
+
+	/**
+	 * Remove the first count bytes
+	 */
+	public void delete(int count) {
+		System.arraycopy(data, count, data, 0, length - count);
+		length -= count;
+	}
+
+	public int indexOf(byte b, int from) {
+		for (int i = from; i < length; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates document IDs from a hash of the event's content and a sequence number that is unique within this JVM
+ * (starting at a random value, so that another JVM or a restart doesn't reuse the same IDs). The IDs are generated once
+ * for each batch that is taken from the queue, so sending it again only ever produces conflicts instead of copies.
+ */
+public class DocumentIds {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final AtomicLong SEQUENCE = new AtomicLong(new SecureRandom().nextLong());
+
+	private DocumentIds() {
+	}
+
+	public static long startHash() {
+		return FNV_OFFSET;
+	}
+
+	// String.hashCode() is cached by the String itself, so hashing the same message again is free
+	public static long hash(long hash, String value) {
+		return hash(hash, value != null ? value.hashCode() : 0);
+	}
+
+	public static long hash(long hash, long value) {
+		return (hash ^ value) * FNV_PRIME;
+	}
+
+	/**
+	 * @return a new 32 character ID
+	 */
+	public static String next(long contentHash) {
+		char[] id = new char[32];
+		writeHex(id, 0, mix(contentHash));
+		writeHex(id, 16, mix(SEQUENCE.getAndIncrement()));
+		return new String(id);
+	}
+
+	// Spreads consecutive sequence numbers (and similar hashes) over all bits (MurmurHash3 finalizer)
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	private static void writeHex(char[] target, int offset, long value) {
+		for (int i = 15; i >= 0; i--) {
+			target[offset + i] = HEX[(int) (value & 0xf)];
+			value >>>= 4;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps track of the length (and optionally the SHA-256 hash) of a payload while it is being appended to, so that
+ * neither needs another pass over the complete payload when it is sent. Can also be written to like an OutputStream.
+ */
+public class PayloadDigest extends OutputStream {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final MessageDigest digest;
+	private long contentLength;
+
+	public PayloadDigest(boolean hash) {
+		this.digest = hash ? newSha256() : null;
+	}
+
+	public void update(byte[] buf, int off, int len) {
+		if (digest != null) {
+			digest.update(buf, off, len);
+		}
+		contentLength += len;
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) {
+		update(buf, off, len);
+	}
+
+	@Override
+	public void write(int b) {
+		update(new byte[] { (byte) b }, 0, 1);
+	}
+
+	/**
+	 * @return number of bytes in the payload
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return hex-encoded SHA-256 of the payload so far (the digest can still be updated afterwards)
+	 */
+	public String getSha256Hex() {
+		if (digest == null) {
+			throw new IllegalStateException("Payload hashing is not enabled");
+		}
+		byte[] hash;
+		try {
+			hash = ((MessageDigest) digest.clone()).digest();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	public void reset() {
+		if (digest != null) {
+			digest.reset();
+		}
+		contentLength = 0;
+	}
+
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Fixed-size buffer segments, optionally allocated outside the heap. Released segments are kept for reuse up to
+ * maxPooledBytes, any more are left to the garbage collector. Every idleTimeout, the pool is also shrunk to what was
+ * actually needed since the last time, so that a burst doesn't keep its memory pinned forever.
+ */
+public class SegmentPool {
+
+	private final int segmentSize;
+	private final boolean direct;
+	private final int maxPooled;
+	private boolean pooling;
+	private final long idleTimeout;
+
+	private final Deque<ByteBuffer> pooled;
+	private int inUse;
+	private int peakInUse;
+	private long lastTrim;
+
+	/**
+	 * @param segmentSize size (in bytes) of each segment
+	 * @param direct allocate segments with ByteBuffer.allocateDirect()
+	 * @param maxPooledBytes how much memory (in bytes) the pool keeps around at most
+	 * @param idleTimeout interval (in ms) at which segments that weren't needed are dropped; 0 or less to never do so
+	 */
+	public SegmentPool(int segmentSize, boolean direct, long maxPooledBytes, long idleTimeout) {
+		this.segmentSize = Math.max(segmentSize, 1024);
+		this.direct = direct;
+		this.maxPooled = (int) Math.min(Math.max(maxPooledBytes, 0) / this.segmentSize, Integer.MAX_VALUE);
+		this.idleTimeout = idleTimeout;
+		this.pooled = new ArrayDeque<ByteBuffer>();
+		this.pooling = true;
+		this.lastTrim = System.currentTimeMillis();
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * @return an empty segment (position 0, limit segmentSize)
+	 */
+	public synchronized ByteBuffer acquire() {
+		inUse++;
+		peakInUse = Math.max(peakInUse, inUse);
+		ByteBuffer segment = pooled.pollLast();
+		if (segment != null) {
+			return segment;
+		}
+		return direct ? ByteBuffer.allocateDirect(segmentSize) : ByteBuffer.allocate(segmentSize);
+	}
+
+	public synchronized void release(ByteBuffer segment) {
+		inUse--;
+		if (pooling && pooled.size() < maxPooled) {
+			// Called through Buffer: when compiled on Java 9+, ByteBuffer.clear() is an override that Java 8 doesn't have
+			((Buffer) segment).clear();
+			pooled.addLast(segment);
+		}
+		trimIfDue();
+	}
+
+	// Only as many spare segments as were needed on top of those in use since the last trim are kept
+	private void trimIfDue() {
+		long now = System.currentTimeMillis();
+		if (idleTimeout <= 0 || now - lastTrim < idleTimeout) {
+			return;
+		}
+		int needed = peakInUse - inUse;
+		while (pooled.size() > needed) {
+			pooled.pollFirst();
+		}
+		peakInUse = inUse;
+		lastTrim = now;
+	}
+
+	/**
+	 * Stop keeping released segments for reuse (dropping the ones kept so far), e.g. to give memory back while the heap
+	 * is short, or start doing so again
+	 */
+	public synchronized void setPooling(boolean pooling) {
+		this.pooling = pooling;
+		if (!pooling) {
+			pooled.clear();
+		}
+	}
+
+	/**
+	 * @return number of segments currently kept for reuse
+	 */
+	public synchronized int getPooledCount() {
+		return pooled.size();
+	}
+}
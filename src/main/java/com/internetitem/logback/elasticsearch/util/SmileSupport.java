@@ -0,0 +1,55 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * Everything that needs jackson-dataformat-smile, kept in one place so that the dependency is only required when the
+ * SMILE format is actually used
+ */
+public class SmileSupport {
+
+	private static final SmileFactory SMILE_FACTORY = newSmileFactory();
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	/**
+	 * @return the (shared) factory for generators that each write a single self-contained SMILE document (with its
+	 * own header and no back-references that a reader of another document would need). Declared as a plain JsonFactory
+	 * so that callers don't need the SMILE classes to be loadable.
+	 */
+	public static JsonFactory getFactory() {
+		return SMILE_FACTORY;
+	}
+
+	private static SmileFactory newSmileFactory() {
+		SmileFactory factory = new SmileFactory();
+		factory.enable(SmileGenerator.Feature.WRITE_HEADER);
+		factory.disable(SmileGenerator.Feature.WRITE_END_MARKER);
+		factory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		return factory;
+	}
+
+	/**
+	 * Convert a single SMILE document to JSON text, for outputs meant to be read by humans
+	 */
+	public static String toJson(byte[] buf, int off, int len) throws IOException {
+		StringWriter writer = new StringWriter(len + 16);
+		JsonParser parser = SMILE_FACTORY.createParser(buf, off, len);
+		try {
+			JsonGenerator gen = JSON_FACTORY.createGenerator(writer);
+			while (parser.nextToken() != null) {
+				gen.copyCurrentStructure(parser);
+			}
+			gen.close();
+		} finally {
+			parser.close();
+		}
+		return writer.toString();
+	}
+}
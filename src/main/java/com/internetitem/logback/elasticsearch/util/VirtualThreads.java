@@ -0,0 +1,20 @@
+package com.internetitem.logback.elasticsearch.util;
+
+/**
+ * Creates virtual threads, where the runtime supports them. This is the version for runtimes before Java 21, the jar
+ * contains another one for Java 21 and later (in META-INF/versions/21).
+ */
+public class VirtualThreads {
+
+	public static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * @return a new (unstarted) virtual thread
+	 * @throws UnsupportedOperationException if the runtime does not support virtual threads
+	 */
+	public static Thread newThread(Runnable runnable, String name) {
+		throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+	}
+}
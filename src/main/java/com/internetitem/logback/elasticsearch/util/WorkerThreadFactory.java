@@ -0,0 +1,58 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import com.internetitem.logback.elasticsearch.config.ExecutionMode;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that serialize and send events, as platform or virtual threads depending on executionMode
+ */
+public class WorkerThreadFactory {
+
+	private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 60;
+
+	private final boolean virtual;
+
+	public WorkerThreadFactory(ExecutionMode executionMode, ErrorReporter errorReporter) {
+		if (executionMode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported()) {
+			errorReporter.logWarning("Virtual threads are not supported by this runtime (they need Java 21 or later) - using platform threads");
+		}
+		this.virtual = executionMode != ExecutionMode.PLATFORM && VirtualThreads.isSupported();
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return a new (unstarted) thread
+	 */
+	public Thread newThread(Runnable runnable, String name) {
+		return virtual ? VirtualThreads.newThread(runnable, name) : new Thread(runnable, name);
+	}
+
+	/**
+	 * @param name prefix for the names of the threads
+	 * @param threads maximum number of threads
+	 * @return an executor running tasks on (daemon) threads of this factory, which go away once they have been idle for
+	 * a while. Must be shut down when no longer needed.
+	 */
+	public ExecutorService newExecutor(final String name, int threads) {
+		final AtomicInteger counter = new AtomicInteger(1);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = WorkerThreadFactory.this.newThread(runnable, name + "-" + counter.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
@@ -0,0 +1,111 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.internetitem.logback.elasticsearch.config.Settings;
+
+/**
+ * Decides how many documents go into one bulk request and how many requests are sent in parallel.
+ *
+ * With adaptiveBatching, both are increased additively (by minBatchSize documents and one request respectively) after
+ * every request that Elasticsearch processed within targetLatency without rejecting anything, and halved whenever
+ * Elasticsearch pushes back with a 429 (either for the whole request or for individual items, which is how it reports
+ * a full write queue). Without it, everything that is buffered goes into one request, split at maxBatchSize documents
+ * if set. Either way, a Retry-After sent along with a 429 is honored (for at most sleepTime * maxRetries, as the wait
+ * holds up the sender thread), and a 413 caps the batch size at half the request that was too large once both halves
+ * were accepted (a single document that is too large by itself is dropped without affecting it).
+ */
+public class AdaptiveBatchController {
+
+	private final boolean adaptive;
+	private final int minBatchSize;
+	private final int maxBatchSize;
+	private final int maxConcurrency;
+	private final long targetLatency;
+	private final long maxRetryAfter;
+
+	private volatile int batchSize;
+	private volatile int concurrency;
+	private volatile long retryAfterUntil;
+
+	private final AtomicLong throttledCount;
+
+	public AdaptiveBatchController(Settings settings) {
+		this.adaptive = settings.isAdaptiveBatching();
+		this.minBatchSize = Math.max(settings.getMinBatchSize(), 1);
+		this.maxBatchSize = settings.getMaxBatchSize() > 0 ? Math.max(settings.getMaxBatchSize(), minBatchSize) : Integer.MAX_VALUE;
+		this.maxConcurrency = adaptive ? Math.max(settings.getMaxConcurrency(), 1) : 1;
+		this.targetLatency = settings.getTargetLatency();
+		this.maxRetryAfter = (long) settings.getSleepTime() * Math.max(settings.getMaxRetries(), 1);
+		this.batchSize = adaptive ? minBatchSize : maxBatchSize;
+		this.concurrency = 1;
+		this.throttledCount = new AtomicLong();
+	}
+
+	/**
+	 * @return current maximum number of documents per bulk request
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return current maximum number of bulk requests in flight at the same time
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * @return number of times Elasticsearch responded with a 429 (for a request or for some of its items)
+	 */
+	public long getThrottledCount() {
+		return throttledCount.get();
+	}
+
+	/**
+	 * @return time (in ms) to wait before sending the next request, because of a Retry-After
+	 */
+	public long getRetryDelay() {
+		return Math.max(retryAfterUntil - System.currentTimeMillis(), 0);
+	}
+
+	/**
+	 * A request was processed without any item being throttled
+	 *
+	 * @param tookMillis processing time reported by Elasticsearch, or -1 if unknown
+	 */
+	public synchronized void onSuccess(long tookMillis) {
+		if (!adaptive || tookMillis > targetLatency) {
+			return;
+		}
+		batchSize = (int) Math.min((long) batchSize + minBatchSize, maxBatchSize);
+		concurrency = Math.min(concurrency + 1, maxConcurrency);
+	}
+
+	/**
+	 * Elasticsearch responded with a 413 to a request, and accepted both its halves. Whether adaptive or not, requests
+	 * are kept to the size of the larger half from then on (growing again from there with adaptiveBatching).
+	 *
+	 * @param documents number of documents in the request that was too large
+	 */
+	public synchronized void onTooLarge(int documents) {
+		batchSize = Math.max(Math.min(batchSize, documents - documents / 2), 1);
+	}
+
+	/**
+	 * Elasticsearch responded with a 429, for the whole request or some of its items
+	 *
+	 * @param retryAfterMillis delay requested with Retry-After, or 0 if none
+	 */
+	public synchronized void onThrottled(long retryAfterMillis) {
+		throttledCount.incrementAndGet();
+		if (retryAfterMillis > 0) {
+			retryAfterUntil = Math.max(retryAfterUntil, System.currentTimeMillis() + Math.min(retryAfterMillis, maxRetryAfter));
+		}
+		if (adaptive) {
+			batchSize = Math.max(batchSize / 2, minBatchSize);
+			concurrency = Math.max(concurrency / 2, 1);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.internetitem.logback.elasticsearch.util.SegmentPool;
+
+/**
+ * Bulk data waiting to be sent, along with where each document (action and source) ends, so that it can be split
+ * into several requests and individual documents can be kept for another attempt.
+ *
+ * The data is held in a chain of fixed-size segments from a SegmentPool, so growing never copies what is already
+ * there and the memory goes back to the pool once the data has been sent.
+ */
+class BulkBuffer {
+
+	private static final int SEPARATORS_PER_DOCUMENT = 2;
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private final byte separator;
+	private final SegmentPool pool;
+	private final int segmentSize;
+	private List<ByteBuffer> segments;
+	private int length;
+	private int[] documentEnds;
+	private int documentCount;
+	private int pendingSeparators;
+
+	BulkBuffer(byte separator, SegmentPool pool) {
+		this.separator = separator;
+		this.pool = pool;
+		this.segmentSize = pool.getSegmentSize();
+		this.segments = new ArrayList<ByteBuffer>();
+		this.documentEnds = new int[256];
+	}
+
+	void append(byte[] buf, int off, int len) {
+		int base = length - off;
+		store(buf, off, len);
+		for (int i = off; i < off + len; i++) {
+			if (buf[i] == separator && ++pendingSeparators == SEPARATORS_PER_DOCUMENT) {
+				addDocumentEnd(base + i + 1);
+				pendingSeparators = 0;
+			}
+		}
+	}
+
+	int length() {
+		return length;
+	}
+
+	int documentCount() {
+		return documentCount;
+	}
+
+	int documentStart(int document) {
+		return document == 0 ? 0 : documentEnds[document - 1];
+	}
+
+	int documentEnd(int document) {
+		return documentEnds[document];
+	}
+
+	/**
+	 * Write a range of the data. Safe to call from several threads at once, as long as nothing modifies the buffer.
+	 */
+	void writeTo(OutputStream out, int from, int to) throws IOException {
+		writeTo(segments, out, from, to);
+	}
+
+	void clear() {
+		for (ByteBuffer segment : segments) {
+			pool.release(segment);
+		}
+		segments.clear();
+		length = 0;
+		documentCount = 0;
+		pendingSeparators = 0;
+	}
+
+	/**
+	 * Remove every complete document that is not in keep, moving the remaining ones (and any incomplete document at
+	 * the end) into fresh segments
+	 */
+	void retain(BitSet keep) {
+		final List<ByteBuffer> old = segments;
+		int oldLength = length;
+		int tail = documentCount > 0 ? documentEnds[documentCount - 1] : 0;
+		segments = new ArrayList<ByteBuffer>();
+		length = 0;
+
+		OutputStream target = new OutputStream() {
+			@Override
+			public void write(byte[] buf, int off, int len) {
+				store(buf, off, len);
+			}
+
+			@Override
+			public void write(int b) {
+				store(new byte[] { (byte) b }, 0, 1);
+			}
+		};
+		try {
+			int kept = 0;
+			int start = 0;
+			for (int i = 0; i < documentCount; i++) {
+				int end = documentEnds[i];
+				if (keep.get(i)) {
+					writeTo(old, target, start, end);
+					// kept <= i, so this never overwrites an entry that is still to be read
+					documentEnds[kept++] = length;
+				}
+				start = end;
+			}
+			writeTo(old, target, tail, oldLength);
+			documentCount = kept;
+		} catch (IOException e) {
+			// Can't happen, target doesn't throw
+			throw new IllegalStateException(e);
+		}
+
+		for (ByteBuffer segment : old) {
+			pool.release(segment);
+		}
+	}
+
+	private void store(byte[] buf, int off, int len) {
+		while (len > 0) {
+			ByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if (segment == null || !segment.hasRemaining()) {
+				segment = pool.acquire();
+				segments.add(segment);
+			}
+			int count = Math.min(len, segment.remaining());
+			segment.put(buf, off, count);
+			off += count;
+			len -= count;
+			length += count;
+		}
+	}
+
+	private void writeTo(List<ByteBuffer> source, OutputStream out, int from, int to) throws IOException {
+		byte[] copyBuffer = null;
+		int pos = from;
+		while (pos < to) {
+			ByteBuffer segment = source.get(pos / segmentSize);
+			int offset = pos % segmentSize;
+			int count = Math.min(to - pos, segmentSize - offset);
+			if (segment.hasArray()) {
+				out.write(segment.array(), segment.arrayOffset() + offset, count);
+			} else {
+				if (copyBuffer == null) {
+					copyBuffer = new byte[Math.min(COPY_BUFFER_SIZE, to - from)];
+				}
+				// A duplicate has its own position, so concurrent readers don't get in each other's way
+				ByteBuffer view = segment.duplicate();
+				// Through Buffer for the same reason as in SegmentPool.release()
+				((Buffer) view).position(offset);
+				for (int done = 0; done < count; ) {
+					int n = Math.min(count - done, copyBuffer.length);
+					view.get(copyBuffer, 0, n);
+					out.write(copyBuffer, 0, n);
+					done += n;
+				}
+			}
+			pos += count;
+		}
+	}
+
+	private void addDocumentEnd(int end) {
+		if (documentCount == documentEnds.length) {
+			documentEnds = Arrays.copyOf(documentEnds, documentCount * 2);
+		}
+		documentEnds[documentCount++] = end;
+	}
+}
@@ -0,0 +1,110 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The parts of a bulk API response that matter for retrying and flow control: the time Elasticsearch took, and the
+ * status (and error, if any) of each item (in request order)
+ */
+class BulkResponse {
+
+	private final long took;
+	private final int[] itemStatuses;
+	private final String[] itemErrors;
+	private final int itemCount;
+
+	private BulkResponse(long took, int[] itemStatuses, String[] itemErrors, int itemCount) {
+		this.took = took;
+		this.itemStatuses = itemStatuses;
+		this.itemErrors = itemErrors;
+		this.itemCount = itemCount;
+	}
+
+	/**
+	 * @return time (in ms) Elasticsearch took to process the request, or -1 if not reported
+	 */
+	long getTook() {
+		return took;
+	}
+
+	int getItemCount() {
+		return itemCount;
+	}
+
+	int getItemStatus(int item) {
+		return itemStatuses[item];
+	}
+
+	/**
+	 * @return the item's error object as JSON, or null if it has none
+	 */
+	String getItemError(int item) {
+		return itemErrors[item];
+	}
+
+	static BulkResponse parse(JsonFactory jf, InputStream stream) throws IOException {
+		long took = -1;
+		int[] statuses = new int[256];
+		String[] errors = new String[256];
+		int count = 0;
+		JsonParser parser = jf.createParser(stream);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return new BulkResponse(took, statuses, errors, 0);
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("took".equals(field) && token == JsonToken.VALUE_NUMBER_INT) {
+					took = parser.getLongValue();
+				} else if ("items".equals(field) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						if (count == statuses.length) {
+							statuses = Arrays.copyOf(statuses, count * 2);
+							errors = Arrays.copyOf(errors, count * 2);
+						}
+						parseItem(jf, parser, statuses, errors, count++);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		return new BulkResponse(took, statuses, errors, count);
+	}
+
+	// Each item is {"<action>": {..., "status": 400, "error": {...}, ...}}
+	private static void parseItem(JsonFactory jf, JsonParser parser, int[] statuses, String[] errors, int item) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (token == JsonToken.VALUE_NUMBER_INT && "status".equals(field)) {
+					statuses[item] = parser.getIntValue();
+				} else if ("error".equals(field)) {
+					StringWriter error = new StringWriter();
+					JsonGenerator gen = jf.createGenerator(error);
+					gen.copyCurrentStructure(parser);
+					gen.close();
+					errors[item] = error.toString();
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+}
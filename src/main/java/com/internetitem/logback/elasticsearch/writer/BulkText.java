@@ -0,0 +1,35 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.util.Base64;
+import com.internetitem.logback.elasticsearch.util.SmileSupport;
+
+/**
+ * Turns records of the bulk payload (an action or a document, including its separator) back into JSON text for the
+ * outputs that are meant to be read by humans
+ */
+class BulkText {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * A SMILE record that can't be read is appended as an object holding its bytes (in Base64) instead, so that one
+	 * bad record neither stops the records after it nor stays in the caller's buffer to fail again
+	 */
+	static void append(StringBuilder text, BulkFormat format, byte[] buf, int off, int len) {
+		if (format == BulkFormat.SMILE) {
+			String json;
+			try {
+				json = SmileSupport.toJson(buf, off, len - 1);
+			} catch (Exception e) {
+				json = "{\"unreadable_smile\":\"" + Base64.encode(Arrays.copyOfRange(buf, off, off + len - 1)) + "\"}";
+			}
+			text.append(json).append('\n');
+		} else {
+			text.append(new String(buf, off, len, UTF_8));
+		}
+	}
+}
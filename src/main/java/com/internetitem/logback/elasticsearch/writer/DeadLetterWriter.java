@@ -0,0 +1,114 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.SmileSupport;
+
+/**
+ * Appends documents that Elasticsearch rejected for good to a local NDJSON file (rolled over just like the file
+ * output), one line per document with the time, the status, the error reported by Elasticsearch, the bulk action and
+ * the document itself. The document is stored as a string, since it may not be valid JSON (e.g. a raw JSON message).
+ * May be shared by the writers of a priority lane.
+ */
+class DeadLetterWriter implements Closeable {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final byte NEWLINE = '\n';
+
+	private final ErrorReporter errorReporter;
+	private final BulkFormat format;
+	private final RollingFileWriter file;
+	private final JsonFactory jf;
+	private final DateFormat dateFormat;
+	private final ByteArrayOutputStream line;
+
+	DeadLetterWriter(ErrorReporter errorReporter, Settings settings) {
+		this.errorReporter = errorReporter;
+		this.format = settings.getFormat();
+		this.file = new RollingFileWriter(errorReporter, settings, settings.getDeadLetterFile(), false, NEWLINE, 1);
+		this.jf = new JsonFactory();
+		this.jf.setRootValueSeparator(null);
+		this.jf.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		this.line = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * @param document the action and source lines, as sent
+	 * @param status HTTP status of the item (or of the whole request)
+	 * @param error error object reported for the item as JSON, or null
+	 * @param reason description of the error, if there is no error object
+	 */
+	synchronized void add(byte[] document, int status, String error, String reason) {
+		try {
+			int actionEnd = indexOf(document, format.getSeparator());
+			String action = toJson(document, 0, actionEnd);
+			String source = toJson(document, actionEnd + 1, document.length - actionEnd - 2);
+
+			line.reset();
+			JsonGenerator gen = jf.createGenerator(line, JsonEncoding.UTF8);
+			gen.writeStartObject();
+			gen.writeStringField("@timestamp", dateFormat.format(new Date()));
+			gen.writeNumberField("status", status);
+			if (error != null) {
+				gen.writeFieldName("error");
+				gen.writeRawValue(error);
+			} else {
+				gen.writeStringField("error", reason);
+			}
+			gen.writeFieldName("action");
+			gen.writeRawValue(action);
+			gen.writeStringField("document", source);
+			gen.writeEndObject();
+			gen.close();
+			line.write(NEWLINE);
+
+			byte[] bytes = line.toByteArray();
+			file.write(bytes, 0, bytes.length);
+		} catch (IOException | RuntimeException e) {
+			errorReporter.logError("Failed to write rejected document to dead letter file: " + e.getMessage(), e);
+		}
+	}
+
+	synchronized void flush() {
+		try {
+			file.sendData();
+		} catch (IOException e) {
+			errorReporter.logError("Failed to write dead letter file: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		flush();
+		file.close();
+	}
+
+	private String toJson(byte[] buf, int off, int len) throws IOException {
+		if (format == BulkFormat.SMILE) {
+			return SmileSupport.toJson(buf, off, len);
+		}
+		return new String(buf, off, len, UTF_8);
+	}
+
+	private static int indexOf(byte[] buf, byte b) {
+		for (int i = 0; i < buf.length; i++) {
+			if (buf[i] == b) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Not a bulk document");
+	}
+}
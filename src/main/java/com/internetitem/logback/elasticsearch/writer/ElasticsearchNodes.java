@@ -0,0 +1,269 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+
+/**
+ * The set of Elasticsearch nodes that bulk requests can be sent to.
+ *
+ * Nodes are picked by least outstanding requests, weighted by their recent latency. A node that fails is put into a
+ * penalty box (for longer each time it fails in a row) and is only used again once its penalty expires, or if no
+ * other node is left to try.
+ */
+public class ElasticsearchNodes {
+
+	private static final int MAX_PENALTY_SHIFT = 5;
+
+	private final Settings settings;
+	private final ErrorReporter errorReporter;
+	private final JsonFactory jf;
+
+	private volatile List<Node> nodes;
+	private long nextDiscovery;
+
+	public ElasticsearchNodes(ErrorReporter errorReporter, Settings settings) {
+		this.errorReporter = errorReporter;
+		this.settings = settings;
+		this.jf = new JsonFactory();
+
+		List<Node> list = new ArrayList<Node>();
+		for (URL url : settings.getUrls()) {
+			list.add(new Node(url));
+		}
+		this.nodes = Collections.unmodifiableList(list);
+	}
+
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Pick the best node to send the next request to
+	 *
+	 * @param exclude nodes that must not be picked (e.g. because they already failed for this request)
+	 * @return the node to use, or null if every node has been excluded
+	 */
+	public Node select(Collection<Node> exclude) {
+		long now = System.currentTimeMillis();
+		Node best = null;
+		double bestScore = Double.MAX_VALUE;
+		Node leastPenalized = null;
+		for (Node node : nodes) {
+			if (exclude.contains(node)) {
+				continue;
+			}
+			if (node.penaltyUntil > now) {
+				if (leastPenalized == null || node.penaltyUntil < leastPenalized.penaltyUntil) {
+					leastPenalized = node;
+				}
+				continue;
+			}
+			double score = (node.outstanding.get() + 1) * (node.latencyMillis + 1);
+			if (score < bestScore) {
+				best = node;
+				bestScore = score;
+			}
+		}
+		return best != null ? best : leastPenalized;
+	}
+
+	public void success(Node node, long elapsedMillis) {
+		node.failures = 0;
+		node.penaltyUntil = 0;
+		// Exponentially weighted moving average, so that a single slow request doesn't dominate
+		node.latencyMillis = node.latencyMillis == 0 ? elapsedMillis : (node.latencyMillis * 7 + elapsedMillis) / 8;
+	}
+
+	public void failure(Node node) {
+		int failures = ++node.failures;
+		long penalty = (long) settings.getNodePenaltyTime() << Math.min(failures - 1, MAX_PENALTY_SHIFT);
+		node.penaltyUntil = System.currentTimeMillis() + penalty;
+		if (nodes.size() > 1) {
+			errorReporter.logWarning("Elasticsearch node " + node + " failed " + failures + " time(s) in a row, not using it for " + penalty + "ms");
+		}
+	}
+
+	/**
+	 * Refresh the node list from the cluster's _nodes/http API, if discovery is enabled and due
+	 */
+	public void discoverIfDue() {
+		if (!settings.isDiscoverNodes()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now < nextDiscovery) {
+			return;
+		}
+		nextDiscovery = now + settings.getNodeDiscoveryInterval();
+
+		List<Node> tried = new ArrayList<Node>();
+		Node seed;
+		while ((seed = select(tried)) != null) {
+			tried.add(seed);
+			try {
+				List<String> addresses = fetchPublishAddresses(seed.getUrl());
+				if (!addresses.isEmpty()) {
+					updateNodes(seed.getUrl(), addresses);
+				}
+				return;
+			} catch (IOException e) {
+				errorReporter.logWarning("Failed to discover Elasticsearch nodes via " + seed + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void updateNodes(URL template, List<String> addresses) throws MalformedURLException {
+		Map<String, Node> existing = new HashMap<String, Node>();
+		for (Node node : nodes) {
+			existing.put(node.toString(), node);
+		}
+
+		String userInfo = template.getUserInfo();
+		List<Node> list = new ArrayList<Node>();
+		for (String address : addresses) {
+			URL url = new URL(template.getProtocol() + "://" + (userInfo != null ? userInfo + "@" : "") + address + template.getFile());
+			Node node = existing.get(url.toString());
+			list.add(node != null ? node : new Node(url));
+		}
+		if (list.size() != nodes.size()) {
+			errorReporter.logInfo("Discovered " + list.size() + " Elasticsearch node(s)");
+		}
+		nodes = Collections.unmodifiableList(list);
+	}
+
+	private List<String> fetchPublishAddresses(URL seed) throws IOException {
+		// The authority includes any user info, so URL-based authentication works for discovery as well
+		URL url = new URL(seed.getProtocol() + "://" + seed.getAuthority() + "/_nodes/http");
+		HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+		try {
+			urlConnection.setReadTimeout(settings.getReadTimeout());
+			urlConnection.setConnectTimeout(settings.getConnectTimeout());
+			urlConnection.setRequestMethod("GET");
+			if (settings.getAuthentication() != null) {
+				try {
+					settings.getAuthentication().addAuth(urlConnection, "");
+				} catch (RuntimeException e) {
+					// e.g. AWSAuthentication failing to resolve its region or credentials
+					throw new IOException("Failed to authenticate request: " + e.getMessage(), e);
+				}
+			}
+
+			int rc = urlConnection.getResponseCode();
+			if (rc != 200) {
+				throw new IOException("Got response code [" + rc + "] from server");
+			}
+
+			InputStream stream = urlConnection.getInputStream();
+			try {
+				return parsePublishAddresses(stream);
+			} finally {
+				stream.close();
+			}
+		} finally {
+			urlConnection.disconnect();
+		}
+	}
+
+	// Extracts nodes.*.http.publish_address, which is either "host:port" or "hostname/ip:port"
+	private List<String> parsePublishAddresses(InputStream stream) throws IOException {
+		List<String> addresses = new ArrayList<String>();
+		JsonParser parser = jf.createParser(stream);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return addresses;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				if (parser.nextToken() != JsonToken.START_OBJECT || !"nodes".equals(field)) {
+					parser.skipChildren();
+					continue;
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					parser.nextToken();
+					String address = parseNodePublishAddress(parser);
+					if (address != null) {
+						addresses.add(address.substring(address.lastIndexOf('/') + 1));
+					}
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		return addresses;
+	}
+
+	private String parseNodePublishAddress(JsonParser parser) throws IOException {
+		String address = null;
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return null;
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("http".equals(field) && token == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String httpField = parser.getCurrentName();
+					if (parser.nextToken() == JsonToken.VALUE_STRING && "publish_address".equals(httpField)) {
+						address = parser.getText();
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return address;
+	}
+
+	public static class Node {
+		private final URL url;
+		private final AtomicInteger outstanding;
+		private volatile long latencyMillis;
+		private volatile int failures;
+		private volatile long penaltyUntil;
+
+		Node(URL url) {
+			this.url = url;
+			this.outstanding = new AtomicInteger();
+		}
+
+		public URL getUrl() {
+			return url;
+		}
+
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		public void requestStarted() {
+			outstanding.incrementAndGet();
+		}
+
+		public void requestFinished() {
+			outstanding.decrementAndGet();
+		}
+
+		@Override
+		public String toString() {
+			return url.toString();
+		}
+	}
+}
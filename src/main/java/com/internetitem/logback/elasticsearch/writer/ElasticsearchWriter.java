@@ -1,95 +1,583 @@
 package com.internetitem.logback.elasticsearch.writer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.internetitem.logback.elasticsearch.config.Authentication;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.config.HeaderAuthentication;
 import com.internetitem.logback.elasticsearch.config.HttpRequestHeader;
 import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
+import com.internetitem.logback.elasticsearch.config.PayloadSigningAuthentication;
 import com.internetitem.logback.elasticsearch.config.Settings;
 import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.PayloadDigest;
+import com.internetitem.logback.elasticsearch.util.SegmentPool;
+import com.internetitem.logback.elasticsearch.util.WorkerThreadFactory;
 
-public class ElasticsearchWriter implements SafeWriter {
+public class ElasticsearchWriter implements SafeWriter, Closeable {
 
-	private StringBuilder sendBuffer;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// Problems with the request itself, which would be rejected just the same by every node and on every attempt. A 404
+	// or 405 for the whole request rather means a wrong path or a proxy or node that isn't ready, so it is retried.
+	private static final Set<Integer> REJECTED_STATUSES = new HashSet<Integer>(Arrays.asList(400, 406, 415, 422));
+	// Problems with a single item, e.g. an index that doesn't exist and can't be created (404)
+	private static final Set<Integer> REJECTED_ITEM_STATUSES = new HashSet<Integer>(Arrays.asList(400, 404, 405, 406, 415, 422));
+	// Problems with the credentials (e.g. while they are being rotated, or clock skew for signed requests)
+	private static final Set<Integer> NOT_AUTHORIZED_STATUSES = new HashSet<Integer>(Arrays.asList(401, 403, 407));
+	private static final int CONFLICT = 409;
+	private static final Set<Integer> CONFLICT_STATUSES = Collections.singleton(CONFLICT);
+	private static final int REQUEST_TOO_LARGE = 413;
+	private static final int TOO_MANY_REQUESTS = 429;
+
+	private SegmentPool segmentPool;
+	private BulkBuffer sendBuffer;
+	// Covers the whole send buffer, as long as nothing was removed from the middle of it
+	private PayloadDigest payloadDigest;
+	private boolean payloadDigestValid;
 
 	private ErrorReporter errorReporter;
 	private Settings settings;
 	private Collection<HttpRequestHeader> headerList;
+	private ElasticsearchNodes nodes;
+	private AdaptiveBatchController controller;
+	private WorkerThreadFactory threadFactory;
+	// Sends all but the first request of a round, created when first needed
+	private volatile ExecutorService senders;
+	private JsonFactory jf;
+	private DeadLetterWriter deadLetters;
+	private boolean ownsDeadLetters;
+	private AtomicLong rejectedCount;
+	private AtomicLong conflictCount;
 
-	private boolean bufferExceeded;
-
-	public ElasticsearchWriter(ErrorReporter errorReporter, Settings settings, HttpRequestHeaders headers) {
+	public ElasticsearchWriter(ErrorReporter errorReporter, Settings settings, HttpRequestHeaders headers, WorkerThreadFactory threadFactory) {
 		this.errorReporter = errorReporter;
 		this.settings = settings;
 		this.headerList = headers != null && headers.getHeaders() != null
 			? headers.getHeaders()
 			: Collections.<HttpRequestHeader>emptyList();
 
-		this.sendBuffer = new StringBuilder();
+		this.nodes = new ElasticsearchNodes(errorReporter, settings);
+		this.controller = new AdaptiveBatchController(settings);
+		this.threadFactory = threadFactory;
+		this.jf = new JsonFactory();
+		this.segmentPool = new SegmentPool(settings.getBufferSegmentSize(), settings.isDirectBuffers(), settings.getBufferPoolSize(), settings.getBufferIdleTimeout());
+		this.sendBuffer = new BulkBuffer(settings.getFormat().getSeparator(), segmentPool);
+		this.payloadDigest = new PayloadDigest(settings.getAuthentication() instanceof PayloadSigningAuthentication);
+		this.payloadDigestValid = true;
+		this.deadLetters = settings.getDeadLetterFile() != null ? new DeadLetterWriter(errorReporter, settings) : null;
+		this.ownsDeadLetters = true;
+		this.rejectedCount = new AtomicLong();
+		this.conflictCount = new AtomicLong();
+	}
+
+	/**
+	 * A writer to the same nodes (sharing what is known about them), dead letter file and counts, but with a
+	 * send buffer and batch controller of its own, so that it never waits for the other writer's requests
+	 */
+	public ElasticsearchWriter(ElasticsearchWriter shared) {
+		this.errorReporter = shared.errorReporter;
+		this.settings = shared.settings;
+		this.headerList = shared.headerList;
+		this.nodes = shared.nodes;
+		this.controller = new AdaptiveBatchController(settings);
+		this.threadFactory = shared.threadFactory;
+		this.jf = new JsonFactory();
+		this.segmentPool = new SegmentPool(settings.getBufferSegmentSize(), settings.isDirectBuffers(), settings.getBufferPoolSize(), settings.getBufferIdleTimeout());
+		this.sendBuffer = new BulkBuffer(settings.getFormat().getSeparator(), segmentPool);
+		this.payloadDigest = new PayloadDigest(settings.getAuthentication() instanceof PayloadSigningAuthentication);
+		this.payloadDigestValid = true;
+		this.deadLetters = shared.deadLetters;
+		this.ownsDeadLetters = false;
+		this.rejectedCount = shared.rejectedCount;
+		this.conflictCount = shared.conflictCount;
+	}
+
+	public ElasticsearchNodes getNodes() {
+		return nodes;
 	}
 
-	public void write(char[] cbuf, int off, int len) {
-		if (bufferExceeded) {
+	public AdaptiveBatchController getController() {
+		return controller;
+	}
+
+	/**
+	 * @see SegmentPool#setPooling(boolean)
+	 */
+	public void setBufferPooling(boolean pooling) {
+		segmentPool.setPooling(pooling);
+	}
+
+	/**
+	 * @return number of documents Elasticsearch rejected for good (and that were written to the dead letter file, if any)
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return number of documents Elasticsearch didn't create because a document with the same ID already existed
+	 * (expected when a request is sent again after e.g. a timeout, but with a documentId pattern it may also mean that
+	 * two different events got the same ID)
+	 */
+	public long getConflictCount() {
+		return conflictCount.get();
+	}
+
+	// maxQueueSize is enforced by the WriterPipeline that feeds this writer
+	public void write(byte[] buf, int off, int len) {
+		sendBuffer.append(buf, off, len);
+		payloadDigest.update(buf, off, len);
+	}
+
+	public void sendData() throws IOException {
+		int documents = sendBuffer.documentCount();
+		if (documents == 0) {
 			return;
 		}
 
-		sendBuffer.append(cbuf, off, len);
+		nodes.discoverIfDue();
 
-		if (sendBuffer.length() >= settings.getMaxQueueSize()) {
-			errorReporter.logWarning("Send queue maximum size exceeded - log messages will be lost until the buffer is cleared");
-			bufferExceeded = true;
+		// Documents to send again later: all of a failed request, and the throttled items of a successful one
+		BitSet retry = new BitSet(documents);
+		IOException error = null;
+		int rejected = 0;
+		int conflicts = 0;
+		int next = 0;
+		// Halves of requests that were too large, sent before any documents that weren't tried yet
+		Deque<BulkRequest> split = new ArrayDeque<BulkRequest>();
+		while (next < documents || !split.isEmpty()) {
+			long delay = controller.getRetryDelay();
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					error = new IOException("Interrupted while waiting for Retry-After");
+					retryRemaining(retry, split, next, documents);
+					break;
+				}
+			}
+
+			List<BulkRequest> round = new ArrayList<BulkRequest>();
+			int batchSize = controller.getBatchSize();
+			for (int i = controller.getConcurrency(); i > 0 && (next < documents || !split.isEmpty()); i--) {
+				if (!split.isEmpty()) {
+					round.add(split.poll());
+					continue;
+				}
+				int end = (int) Math.min((long) next + batchSize, documents);
+				round.add(new BulkRequest(next, end));
+				next = end;
+			}
+			sendAll(round);
+
+			boolean failed = false;
+			for (BulkRequest request : round) {
+				if (request.error instanceof RequestTooLargeException && request.end - request.start > 1) {
+					int middle = request.start + (request.end - request.start) / 2;
+					split.add(new BulkRequest(request.start, middle, request));
+					split.add(new BulkRequest(middle, request.end, request));
+				} else if (request.error instanceof RequestTooLargeException) {
+					errorReporter.logError("Elasticsearch rejected a document as too large, dropping it: " + request.error.getMessage(), request.error);
+					reject(request.start, REQUEST_TOO_LARGE, null, request.error.getMessage());
+				} else if (request.error instanceof RequestRejectedException) {
+					errorReporter.logError("Elasticsearch rejected bulk request, dropping " + (request.end - request.start) + " events: " + request.error.getMessage(), request.error);
+					int status = ((RequestRejectedException) request.error).getStatus();
+					for (int i = request.start; i < request.end; i++) {
+						reject(i, status, null, request.error.getMessage());
+					}
+				} else if (request.error != null) {
+					retry.set(request.start, request.end);
+					failed = true;
+					error = error != null ? error : request.error;
+				} else {
+					if (request.splitFrom != null && ++request.splitFrom.acceptedHalves == 2) {
+						// Only cap once both halves fit; isolating a single document that is too large by itself never
+						// gets here, as one half is always too large again
+						controller.onTooLarge(request.splitFrom.end - request.splitFrom.start);
+					}
+					rejected += rejectItems(request);
+					conflicts += request.conflicts;
+					if (request.retryItems != null) {
+						for (int i = request.retryItems.nextSetBit(0); i >= 0; i = request.retryItems.nextSetBit(i + 1)) {
+							retry.set(request.start + i);
+						}
+						if (error == null) {
+							error = new IOException(request.retryItems.cardinality() + " documents were not accepted by Elasticsearch and will be sent again");
+						}
+					}
+				}
+			}
+			if (failed) {
+				// Don't keep hammering a cluster that pushes back (or is unreachable), the rest is retried along with it
+				retryRemaining(retry, split, next, documents);
+				break;
+			}
+		}
+
+		if (conflicts > 0) {
+			conflictCount.addAndGet(conflicts);
+			errorReporter.logInfo(conflicts + " documents already existed in Elasticsearch (version conflict) and were not created again");
+		}
+		if (deadLetters != null) {
+			deadLetters.flush();
+		} else if (rejected > 0) {
+			errorReporter.logError(rejected + " documents were rejected by Elasticsearch and dropped (set deadLetterFile to keep them)", null);
+		}
+
+		if (retry.isEmpty()) {
+			sendBuffer.clear();
+			payloadDigest.reset();
+			payloadDigestValid = true;
+		} else {
+			sendBuffer.retain(retry);
+			payloadDigestValid = false;
+		}
+		if (error != null) {
+			throw error;
 		}
 	}
 
-	public void sendData() throws IOException {
-		if (sendBuffer.length() <= 0) {
-			return;
+	private static void retryRemaining(BitSet retry, Deque<BulkRequest> split, int next, int documents) {
+		for (BulkRequest request : split) {
+			retry.set(request.start, request.end);
 		}
+		retry.set(next, documents);
+	}
 
-		HttpURLConnection urlConnection = (HttpURLConnection)(settings.getUrl().openConnection());
-		try {
-			urlConnection.setDoInput(true);
-			urlConnection.setDoOutput(true);
-			urlConnection.setReadTimeout(settings.getReadTimeout());
-			urlConnection.setConnectTimeout(settings.getConnectTimeout());
-			urlConnection.setRequestMethod("POST");
+	// Items that failed for a reason that won't go away by sending them again, e.g. a mapping conflict
+	private int rejectItems(BulkRequest request) throws IOException {
+		BulkResponse response = request.response;
+		if (response == null) {
+			return 0;
+		}
+		int rejected = 0;
+		int items = Math.min(response.getItemCount(), request.end - request.start);
+		for (int i = 0; i < items; i++) {
+			int status = response.getItemStatus(i);
+			if (REJECTED_ITEM_STATUSES.contains(status)) {
+				reject(request.start + i, status, response.getItemError(i), null);
+				rejected++;
+			}
+		}
+		return rejected;
+	}
 
-			String body = sendBuffer.toString();
+	private void reject(int document, int status, String error, String reason) throws IOException {
+		rejectedCount.incrementAndGet();
+		if (deadLetters != null) {
+			int from = sendBuffer.documentStart(document);
+			int to = sendBuffer.documentEnd(document);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(to - from);
+			sendBuffer.writeTo(bytes, from, to);
+			deadLetters.add(bytes.toByteArray(), status, error, reason);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (senders != null) {
+			senders.shutdown();
+		}
+		if (deadLetters != null && ownsDeadLetters) {
+			deadLetters.close();
+		}
+	}
+
+	// The first request is sent on the calling thread, any others by the senders
+	private void sendAll(List<BulkRequest> requests) {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		if (requests.size() > 1) {
+			if (senders == null) {
+				senders = threadFactory.newExecutor(Thread.currentThread().getName() + "-sender", Math.max(settings.getMaxConcurrency() - 1, 1));
+			}
+			for (int i = 1; i < requests.size(); i++) {
+				futures.add(senders.submit(requests.get(i)));
+			}
+		}
+		requests.get(0).run();
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				errorReporter.logError("Internal error sending bulk request: " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Sends a range of documents from the send buffer, trying each node at most once; the caller is responsible for
+	 * retrying later if they all fail
+	 */
+	private class BulkRequest implements Runnable {
+		private final int start;
+		private final int end;
+		// The request that was too large and split up to get this one, if any
+		private final BulkRequest splitFrom;
+		private int acceptedHalves;
+		private IOException error;
+		private BitSet retryItems;
+		private int conflicts;
+		private BulkResponse response;
+
+		BulkRequest(int start, int end) {
+			this(start, end, null);
+		}
+
+		BulkRequest(int start, int end, BulkRequest splitFrom) {
+			this.start = start;
+			this.end = end;
+			this.splitFrom = splitFrom;
+		}
+
+		public void run() {
+			try {
+				send();
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new IOException(e);
+			}
+		}
 
-			if (!headerList.isEmpty()) {
-				for(HttpRequestHeader header: headerList) {
-					urlConnection.setRequestProperty(header.getName(), header.getValue());
+		private void send() throws IOException {
+			int from = sendBuffer.documentStart(start);
+			int to = sendBuffer.documentEnd(end - 1);
+
+			// Only schemes that implement neither HeaderAuthentication nor PayloadSigningAuthentication need the whole
+			// body as a String (and aren't used with SMILE, see AbstractElasticsearchPublisher)
+			Authentication authentication = settings.getAuthentication();
+			String body = null;
+			if (needsBody(authentication)) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(to - from);
+				sendBuffer.writeTo(bytes, from, to);
+				body = new String(bytes.toByteArray(), UTF_8);
+			}
+
+			PayloadDigest digest = payloadDigest;
+			if (!payloadDigestValid || from != 0 || to != sendBuffer.length()) {
+				digest = new PayloadDigest(authentication instanceof PayloadSigningAuthentication);
+				sendBuffer.writeTo(digest, from, to);
+			}
+
+			List<ElasticsearchNodes.Node> tried = new ArrayList<ElasticsearchNodes.Node>();
+			IOException lastError = null;
+			ElasticsearchNodes.Node node;
+			while ((node = nodes.select(tried)) != null) {
+				tried.add(node);
+				long startTime = System.currentTimeMillis();
+				node.requestStarted();
+				try {
+					BulkResponse response = sendBody(node.getUrl(), body, from, to, digest);
+					nodes.success(node, System.currentTimeMillis() - startTime);
+					handleResponse(response);
+					return;
+				} catch (ThrottledException e) {
+					// The whole cluster is busy, so sending it to a different node won't help
+					controller.onThrottled(e.getRetryAfter());
+					throw e;
+				} catch (RequestRejectedException | RequestTooLargeException | NotAuthorizedException e) {
+					// Not the node's fault, and another node would respond just the same
+					throw e;
+				} catch (IOException e) {
+					nodes.failure(node);
+					lastError = e;
+				} finally {
+					node.requestFinished();
+				}
+			}
+			throw lastError != null ? lastError : new IOException("No Elasticsearch node left to send to");
+		}
+
+		private void handleResponse(BulkResponse response) {
+			this.response = response;
+			this.retryItems = retryItems(response, end - start);
+			this.conflicts = countItems(response, end - start, CONFLICT_STATUSES);
+		}
+	}
+
+	// Items that were throttled, failed on the server side or weren't authorized (e.g. a 403 while an index is
+	// read-only because the disk is full) get another chance, the rejected ones (e.g. a mapping error) would fail
+	// again. A version conflict means a document with the same ID was created before (e.g. by an attempt that timed
+	// out), so it's done. Returns null if no item needs to be sent again.
+	private BitSet retryItems(BulkResponse response, int documents) {
+		BitSet retry = null;
+		boolean throttled = false;
+		int items = Math.min(response.getItemCount(), documents);
+		for (int i = 0; i < items; i++) {
+			int status = response.getItemStatus(i);
+			if (status >= 300 && status != CONFLICT && !REJECTED_ITEM_STATUSES.contains(status)) {
+				if (retry == null) {
+					retry = new BitSet();
 				}
+				retry.set(i);
+				throttled |= status == TOO_MANY_REQUESTS;
 			}
+		}
+		if (throttled) {
+			controller.onThrottled(0);
+		} else {
+			controller.onSuccess(response.getTook());
+		}
+		return retry;
+	}
 
-			if (settings.getAuthentication() != null) {
-				settings.getAuthentication().addAuth(urlConnection, body);
+	private static int countItems(BulkResponse response, int documents, Set<Integer> statuses) {
+		int count = 0;
+		int items = Math.min(response.getItemCount(), documents);
+		for (int i = 0; i < items; i++) {
+			if (statuses.contains(response.getItemStatus(i))) {
+				count++;
 			}
+		}
+		return count;
+	}
 
-			Writer writer = new OutputStreamWriter(urlConnection.getOutputStream(), "UTF-8");
-			writer.write(body);
-			writer.flush();
-			writer.close();
+	private BulkResponse sendBody(URL url, String body, int from, int to, PayloadDigest digest) throws IOException {
+		HttpURLConnection urlConnection = openConnection(url);
+		try {
+			// Stream the body instead of letting the connection buffer another copy of it
+			long contentLength = digest.getContentLength();
+			urlConnection.setFixedLengthStreamingMode(contentLength);
 
-			int rc = urlConnection.getResponseCode();
-			if (rc != 200) {
-				String data = slurpErrors(urlConnection);
-				throw new IOException("Got response code [" + rc + "] from server with data " + data);
+			Authentication authentication = settings.getAuthentication();
+			try {
+				if (authentication instanceof PayloadSigningAuthentication) {
+					((PayloadSigningAuthentication) authentication).addAuth(urlConnection, contentLength, digest.getSha256Hex());
+				} else if (authentication instanceof HeaderAuthentication) {
+					((HeaderAuthentication) authentication).addAuth(urlConnection);
+				} else if (authentication != null) {
+					authentication.addAuth(urlConnection, body);
+				}
+			} catch (RuntimeException e) {
+				// e.g. AWSAuthentication failing to resolve its region or credentials, which isn't the node's fault
+				throw new NotAuthorizedException("Failed to authenticate request: " + e.getMessage(), e);
 			}
+
+			OutputStream out = urlConnection.getOutputStream();
+			sendBuffer.writeTo(out, from, to);
+			out.close();
+
+			checkResponse(urlConnection, url);
+			return readResponse(urlConnection);
 		} finally {
 			urlConnection.disconnect();
 		}
+	}
+
+	private BulkResponse readResponse(HttpURLConnection urlConnection) throws IOException {
+		InputStream in = urlConnection.getInputStream();
+		try {
+			return BulkResponse.parse(jf, in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean needsBody(Authentication authentication) {
+		return authentication != null && !(authentication instanceof HeaderAuthentication) && !(authentication instanceof PayloadSigningAuthentication);
+	}
+
+	/**
+	 * Open a bulk request whose body is written while the request is in flight (using chunked transfer encoding),
+	 * instead of being buffered first. Only available without authentication or with a HeaderAuthentication, since
+	 * other schemes need the whole payload (or its hash) before it has been written.
+	 *
+	 * @param exclude nodes that must not be used (e.g. because they already failed for this batch)
+	 * @return the open request
+	 * @throws IOException if no node is left or the connection could not be opened
+	 */
+	public StreamingRequest openStreamingRequest(Collection<ElasticsearchNodes.Node> exclude) throws IOException {
+		Authentication authentication = settings.getAuthentication();
+		if (authentication != null && !(authentication instanceof HeaderAuthentication)) {
+			throw new IllegalStateException("Streaming requests are not supported with " + authentication.getClass().getSimpleName());
+		}
+		nodes.discoverIfDue();
+		ElasticsearchNodes.Node node = nodes.select(exclude);
+		if (node == null) {
+			throw new IOException("No Elasticsearch node left to send to");
+		}
+		return new StreamingRequest(node);
+	}
+
+	private HttpURLConnection openConnection(URL url) throws IOException {
+		HttpURLConnection urlConnection = (HttpURLConnection)(url.openConnection());
+		urlConnection.setDoInput(true);
+		urlConnection.setDoOutput(true);
+		urlConnection.setReadTimeout(settings.getReadTimeout());
+		urlConnection.setConnectTimeout(settings.getConnectTimeout());
+		urlConnection.setRequestMethod("POST");
+
+		if (!headerList.isEmpty()) {
+			for(HttpRequestHeader header: headerList) {
+				urlConnection.setRequestProperty(header.getName(), header.getValue());
+			}
+		}
+		// A configured Content-Type header is kept for JSON, but would make SMILE unreadable to the server
+		BulkFormat format = settings.getFormat();
+		if (format != BulkFormat.JSON || urlConnection.getRequestProperty("Content-Type") == null) {
+			urlConnection.setRequestProperty("Content-Type", format.getContentType());
+		}
+		// The bulk response is parsed for per-item results, so it has to be JSON whatever the request body is
+		urlConnection.setRequestProperty("Accept", BulkFormat.JSON.getContentType());
+		return urlConnection;
+	}
+
+	private static void checkResponse(HttpURLConnection urlConnection, URL url) throws IOException {
+		int rc = urlConnection.getResponseCode();
+		if (rc != 200) {
+			String data = slurpErrors(urlConnection);
+			String message = "Got response code [" + rc + "] from server " + url + " with data " + data;
+			if (rc == TOO_MANY_REQUESTS) {
+				throw new ThrottledException(message, parseRetryAfter(urlConnection.getHeaderField("Retry-After")));
+			}
+			if (rc == REQUEST_TOO_LARGE) {
+				throw new RequestTooLargeException(message);
+			}
+			if (NOT_AUTHORIZED_STATUSES.contains(rc)) {
+				throw new NotAuthorizedException(message);
+			}
+			if (REJECTED_STATUSES.contains(rc)) {
+				throw new RequestRejectedException(message, rc);
+			}
+			throw new IOException(message);
+		}
+	}
 
-		sendBuffer.setLength(0);
-		if (bufferExceeded) {
-			errorReporter.logInfo("Send queue cleared - log messages will no longer be lost");
-			bufferExceeded = false;
+	// Only the delay-seconds form, an HTTP date is treated as if there was no Retry-After at all
+	private static long parseRetryAfter(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(Long.parseLong(value.trim()), 0) * 1000;
+		} catch (NumberFormatException e) {
+			return 0;
 		}
 	}
 
@@ -117,4 +605,190 @@ public class ElasticsearchWriter implements SafeWriter {
 		}
 	}
 
+	/**
+	 * A bulk request that is open while its body is being written. Call finish() once the whole body has been
+	 * written, abort() if sending it failed, or cancel() if the body couldn't be produced.
+	 */
+	public class StreamingRequest extends OutputStream {
+		private final ElasticsearchNodes.Node node;
+		private final HttpURLConnection urlConnection;
+		private final long start;
+		private OutputStream out;
+		private boolean done;
+
+		private StreamingRequest(ElasticsearchNodes.Node node) throws IOException {
+			this.node = node;
+			this.start = System.currentTimeMillis();
+			node.requestStarted();
+			this.urlConnection = openConnection(node.getUrl());
+			try {
+				urlConnection.setChunkedStreamingMode(settings.getStreamingChunkSize());
+				if (settings.getAuthentication() != null) {
+					((HeaderAuthentication) settings.getAuthentication()).addAuth(urlConnection);
+				}
+				this.out = urlConnection.getOutputStream();
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		public ElasticsearchNodes.Node getNode() {
+			return node;
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			out.write(buf, off, len);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+		}
+
+		/**
+		 * Completes the request and goes through the results for each document, in the order they were written. A
+		 * document that already existed is done, and one that was rejected (see deadLetterFile, which doesn't apply
+		 * here) is dropped; the others that failed have to be sent again.
+		 *
+		 * @return the documents to send again, or null if there are none
+		 * @throws IOException if the request as a whole failed
+		 */
+		public BitSet finish() throws IOException {
+			if (done) {
+				return null;
+			}
+			done = true;
+			BulkResponse response;
+			try {
+				out.close();
+				checkResponse(urlConnection, node.getUrl());
+				response = readResponse(urlConnection);
+				nodes.success(node, System.currentTimeMillis() - start);
+			} catch (ThrottledException e) {
+				controller.onThrottled(e.getRetryAfter());
+				throw e;
+			} catch (RequestRejectedException | RequestTooLargeException | NotAuthorizedException e) {
+				throw e;
+			} catch (IOException e) {
+				nodes.failure(node);
+				throw e;
+			} finally {
+				urlConnection.disconnect();
+				node.requestFinished();
+			}
+
+			int documents = response.getItemCount();
+			int conflicts = countItems(response, documents, CONFLICT_STATUSES);
+			if (conflicts > 0) {
+				conflictCount.addAndGet(conflicts);
+				errorReporter.logInfo(conflicts + " documents already existed in Elasticsearch (version conflict) and were not created again");
+			}
+			int rejected = countItems(response, documents, REJECTED_ITEM_STATUSES);
+			if (rejected > 0) {
+				rejectedCount.addAndGet(rejected);
+				errorReporter.logError(rejected + " documents were rejected by Elasticsearch and dropped", null);
+			}
+			return retryItems(response, documents);
+		}
+
+		/**
+		 * Give up on the request because sending it failed, which counts against the node
+		 */
+		public void abort() {
+			release(true);
+		}
+
+		/**
+		 * Give up on the request for a reason that has nothing to do with the node (e.g. an event couldn't be
+		 * serialized)
+		 */
+		public void cancel() {
+			release(false);
+		}
+
+		private void release(boolean nodeFailed) {
+			if (done) {
+				return;
+			}
+			done = true;
+			if (nodeFailed) {
+				nodes.failure(node);
+			}
+			urlConnection.disconnect();
+			node.requestFinished();
+		}
+	}
+
+	/**
+	 * The server rejected the request itself as malformed (rather than failing to process it), so there is no point
+	 * trying another node, or trying again later
+	 */
+	public static class RequestRejectedException extends IOException {
+		private final int status;
+
+		RequestRejectedException(String message, int status) {
+			super(message);
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+	}
+
+	/**
+	 * The server responded with a 413, the request has to be split up to be accepted
+	 */
+	public static class RequestTooLargeException extends IOException {
+		RequestTooLargeException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The server didn't accept the credentials (e.g. because they expired and haven't been replaced yet), or they
+	 * couldn't be obtained in the first place. Sending the same request again later may well succeed, but sending it
+	 * to another node right away won't.
+	 */
+	public static class NotAuthorizedException extends IOException {
+		NotAuthorizedException(String message) {
+			super(message);
+		}
+
+		NotAuthorizedException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * The server responded with a 429, it is healthy but too busy to accept more data right now
+	 */
+	public static class ThrottledException extends IOException {
+		private final long retryAfter;
+
+		ThrottledException(String message, long retryAfter) {
+			super(message);
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 * @return delay (in ms) requested by the server with Retry-After, or 0 if none
+		 */
+		public long getRetryAfter() {
+			return retryAfter;
+		}
+	}
+
 }
@@ -1,30 +1,77 @@
 package com.internetitem.logback.elasticsearch.writer;
 
+import java.io.IOException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.util.ByteBuilder;
+
+/**
+ * Logs the bulk data to a logger, one log record per document (i.e. the action line followed by the source line,
+ * including the trailing newline, so that a plain "%msg" pattern reproduces the bulk format exactly). SMILE data is
+ * logged as the equivalent JSON.
+ */
 public class LoggerWriter implements SafeWriter {
 
+	private static final int LINES_PER_DOCUMENT = 2;
+
 	private String loggerName;
+	private BulkFormat format;
 
 	private Logger logger;
 
-	public LoggerWriter(String loggerName) {
+	private ByteBuilder buffer;
+	private int pendingLines;
+
+	public LoggerWriter(String loggerName, BulkFormat format) {
 		this.loggerName = loggerName;
+		this.format = format;
+		this.buffer = new ByteBuilder();
 	}
 
-	public void write(char[] cbuf, int off, int len) {
+	public void write(byte[] buf, int off, int len) {
+		buffer.append(buf, off, len);
+		byte separator = format.getSeparator();
+		for (int i = off; i < off + len; i++) {
+			if (buf[i] == separator) {
+				pendingLines++;
+			}
+		}
+	}
+
+	public void sendData() throws IOException {
+		if (!hasPendingData()) {
+			return;
+		}
 		if (logger == null) {
 			logger = LoggerFactory.getLogger(loggerName);
 		}
-		logger.info(new String(cbuf, 0, len));
-	}
 
-	public void sendData() {
-		// No-op
+		byte separator = format.getSeparator();
+		int start = 0;
+		int lineStart = 0;
+		int lines = 0;
+		int end;
+		StringBuilder text = new StringBuilder();
+		while ((end = buffer.indexOf(separator, lineStart)) >= 0) {
+			BulkText.append(text, format, buffer.array(), lineStart, end + 1 - lineStart);
+			lineStart = end + 1;
+			if (++lines == LINES_PER_DOCUMENT) {
+				logger.info(text.toString());
+				text.setLength(0);
+				start = lineStart;
+				lines = 0;
+			}
+		}
+
+		// Keep any incomplete document for the next batch
+		buffer.delete(start);
+		pendingLines = lines;
 	}
 
 	public boolean hasPendingData() {
-		return false;
+		return pendingLines >= LINES_PER_DOCUMENT;
 	}
 }
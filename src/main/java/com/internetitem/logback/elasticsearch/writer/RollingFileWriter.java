@@ -0,0 +1,219 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import com.internetitem.logback.elasticsearch.config.FileFormat;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ByteBuilder;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+
+/**
+ * Appends the bulk data to a local file, for pickup by a log shipping agent (or a plain
+ * {@code curl --data-binary @file}) instead of sending it over HTTP.
+ *
+ * The file is rolled over once it exceeds maxFileSize (checked between batches, so files can be slightly larger) or
+ * once it has been open for fileRolloverInterval. Calls to force() are batched to at most one per fileSyncInterval
+ * while data keeps coming in. Once it stops, the next sendData() syncs right away, so that nobody waiting for the data
+ * to be delivered has to wait for another round.
+ */
+public class RollingFileWriter implements SafeWriter, Closeable {
+
+	private static final int BULK_LINES_PER_DOCUMENT = 2;
+
+	private final ErrorReporter errorReporter;
+	private final Settings settings;
+	private final Path path;
+	private final boolean documentsOnly;
+	private final byte separator;
+	private final int linesPerDocument;
+
+	private final ByteBuilder buffer;
+
+	private FileChannel channel;
+	private long fileSize;
+	private long fileOpenedAt;
+	private long lastSync;
+	private boolean unsynced;
+	private boolean closed;
+
+	public RollingFileWriter(ErrorReporter errorReporter, Settings settings) {
+		this(errorReporter, settings, settings.getFile(), settings.getFileFormat() == FileFormat.DOCUMENTS, settings.getFormat().getSeparator(), BULK_LINES_PER_DOCUMENT);
+	}
+
+	/**
+	 * @param file path of the file to write
+	 * @param documentsOnly leave out the first line of each document (the bulk action)
+	 * @param separator byte that ends each line
+	 * @param linesPerDocument number of lines that make up a document, which is never split across two files
+	 */
+	RollingFileWriter(ErrorReporter errorReporter, Settings settings, String file, boolean documentsOnly, byte separator, int linesPerDocument) {
+		this.errorReporter = errorReporter;
+		this.settings = settings;
+		this.path = new File(file).toPath();
+		this.documentsOnly = documentsOnly;
+		this.separator = separator;
+		this.linesPerDocument = linesPerDocument;
+		this.buffer = new ByteBuilder();
+	}
+
+	public synchronized void write(byte[] buf, int off, int len) {
+		buffer.append(buf, off, len);
+	}
+
+	public synchronized void sendData() throws IOException {
+		if (closed) {
+			buffer.setLength(0);
+			return;
+		}
+
+		boolean written = buffer.length() > 0;
+		if (written) {
+			rollOverIfDue();
+			if (channel == null) {
+				open();
+			}
+			try {
+				writeBuffer();
+			} catch (IOException e) {
+				closeChannel();
+				throw e;
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		if (unsynced && (!written || now - lastSync >= settings.getFileSyncInterval())) {
+			channel.force(false);
+			unsynced = false;
+			lastSync = now;
+		}
+	}
+
+	public synchronized boolean hasPendingData() {
+		return buffer.length() != 0 || unsynced;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		if (channel != null) {
+			if (unsynced) {
+				channel.force(false);
+				unsynced = false;
+			}
+			closeChannel();
+		}
+	}
+
+	// Only whole documents are removed from the buffer once they have reached the channel, so a failed write is retried
+	// from the first document that didn't make it
+	private void writeBuffer() throws IOException {
+		int committed = 0;
+		try {
+			// Contiguous data is written in one go, only skipped action lines split it up
+			int pending = 0;
+			int documentEnd = 0;
+			int lineStart = 0;
+			int lines = 0;
+			int end;
+			while ((end = buffer.indexOf(separator, lineStart)) >= 0) {
+				if (documentsOnly && lines % linesPerDocument == 0) {
+					writeFully(pending, lineStart);
+					committed = lineStart;
+					pending = end + 1;
+				}
+				lineStart = end + 1;
+				if (++lines % linesPerDocument == 0) {
+					documentEnd = lineStart;
+				}
+			}
+			if (documentEnd > pending) {
+				writeFully(pending, documentEnd);
+			}
+			committed = documentEnd;
+		} finally {
+			buffer.delete(committed);
+		}
+	}
+
+	private void writeFully(int start, int end) throws IOException {
+		if (start == end) {
+			return;
+		}
+		ByteBuffer data = ByteBuffer.wrap(buffer.array(), start, end - start);
+		while (data.hasRemaining()) {
+			fileSize += channel.write(data);
+		}
+		unsynced = true;
+	}
+
+	private void rollOverIfDue() throws IOException {
+		if (channel != null && !Files.exists(path)) {
+			// Moved away by someone else, start a new file
+			closeChannel();
+		}
+		if (channel == null) {
+			if (!Files.exists(path)) {
+				return;
+			}
+			fileSize = Files.size(path);
+			fileOpenedAt = Files.readAttributes(path, BasicFileAttributes.class).creationTime().toMillis();
+		}
+		if (fileSize == 0) {
+			return;
+		}
+		long interval = settings.getFileRolloverInterval();
+		boolean sizeExceeded = settings.getMaxFileSize() > 0 && fileSize >= settings.getMaxFileSize();
+		boolean timeExceeded = interval > 0 && System.currentTimeMillis() - fileOpenedAt >= interval;
+		if (!sizeExceeded && !timeExceeded) {
+			return;
+		}
+
+		if (channel != null) {
+			if (unsynced) {
+				channel.force(false);
+				unsynced = false;
+			}
+			closeChannel();
+		}
+
+		String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		Path target = path.resolveSibling(path.getFileName() + "." + suffix);
+		for (int i = 1; Files.exists(target); i++) {
+			target = path.resolveSibling(path.getFileName() + "." + suffix + "." + i);
+		}
+		Files.move(path, target);
+		errorReporter.logInfo("Rolled over " + path + " to " + target);
+	}
+
+	private void open() throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileSize = channel.size();
+		if (fileSize == 0) {
+			fileOpenedAt = System.currentTimeMillis();
+		}
+	}
+
+	private void closeChannel() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			errorReporter.logWarning("Failed to close " + path + ": " + e.getMessage());
+		}
+		channel = null;
+		unsynced = false;
+	}
+}
@@ -4,7 +4,7 @@ import java.io.IOException;
 
 public interface SafeWriter {
 
-	void write(char[] cbuf, int off, int len);
+	void write(byte[] buf, int off, int len);
 
 	void sendData() throws IOException;
 
@@ -1,16 +1,44 @@
 package com.internetitem.logback.elasticsearch.writer;
 
+import java.io.IOException;
+
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.util.ByteBuilder;
+
+/**
+ * Dumps the bulk data to stderr (as JSON, whatever the format), in a single write per batch
+ */
 public class StdErrWriter implements SafeWriter {
 
-	public void write(char[] cbuf, int off, int len) {
-		System.err.println(new String(cbuf, 0, len));
+	private final BulkFormat format;
+	private final ByteBuilder buffer = new ByteBuilder();
+
+	public StdErrWriter(BulkFormat format) {
+		this.format = format;
+	}
+
+	public void write(byte[] buf, int off, int len) {
+		buffer.append(buf, off, len);
 	}
 
-	public void sendData() {
-		// No-op
+	public void sendData() throws IOException {
+		if (buffer.length() == 0) {
+			return;
+		}
+		StringBuilder text = new StringBuilder(buffer.length());
+		byte separator = format.getSeparator();
+		int start = 0;
+		int end;
+		while ((end = buffer.indexOf(separator, start)) >= 0) {
+			BulkText.append(text, format, buffer.array(), start, end + 1 - start);
+			start = end + 1;
+		}
+		buffer.delete(start);
+		System.err.print(text);
+		System.err.flush();
 	}
 
 	public boolean hasPendingData() {
-		return false;
+		return buffer.length() != 0;
 	}
 }
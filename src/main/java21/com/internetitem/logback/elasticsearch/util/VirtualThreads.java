@@ -0,0 +1,18 @@
+package com.internetitem.logback.elasticsearch.util;
+
+/**
+ * Creates virtual threads, where the runtime supports them. This is the version for Java 21 and later.
+ */
+public class VirtualThreads {
+
+	public static boolean isSupported() {
+		return true;
+	}
+
+	/**
+	 * @return a new (unstarted) virtual thread
+	 */
+	public static Thread newThread(Runnable runnable, String name) {
+		return Thread.ofVirtual().name(name).unstarted(runnable);
+	}
+}
@@ -0,0 +1,113 @@
+package com.internetitem.logback.elasticsearch;
+
+import ch.qos.logback.access.spi.IAccessEvent;
+import ch.qos.logback.core.ContextBase;
+import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AccessElasticsearchPublisherTest {
+
+    @Mock
+    private IAccessEvent event;
+
+    @Mock
+    private ErrorReporter errorReporter;
+
+    private Settings settings;
+
+    @Before
+    public void setUp() {
+        settings = new Settings();
+        settings.setIndex("access");
+        when(event.getTimeStamp()).thenReturn(0L);
+        when(event.getStatusCode()).thenReturn(404);
+        when(event.getElapsedTime()).thenReturn(12L);
+        when(event.getContentLength()).thenReturn(-1L);
+        when(event.getMethod()).thenReturn("GET");
+        when(event.getRequestURI()).thenReturn("/missing");
+        when(event.getRemoteAddr()).thenReturn(IAccessEvent.NA);
+        when(event.getRequestHeader("User-Agent")).thenReturn("curl");
+        when(event.getRequestContent()).thenReturn("{\"q\":1}");
+        when(event.getResponseContent()).thenReturn("not found");
+    }
+
+    @Test
+    public void should_write_configured_fields_that_are_available() throws Exception {
+        // given
+        settings.addAccessField("remote_addr");
+        settings.addAccessField("uri");
+        settings.addAccessField("Status");
+        settings.addAccessField("content_length");
+        settings.addAccessField("elapsed_time");
+        settings.addAccessField("method");
+        settings.addAccessField("referer");
+
+        // when
+        String document = serialize();
+
+        // then
+        assertThat(document, is("{\"@timestamp\":\"" + timestamp() + "\",\"status\":404,\"elapsed_time\":12,\"method\":\"GET\",\"uri\":\"/missing\"}"));
+        verify(errorReporter).logWarning(contains("[referer]"));
+    }
+
+    @Test
+    public void should_write_headers_with_lower_case_names_and_leave_out_empty_header_objects() throws Exception {
+        // given
+        settings.addRequestHeader("User-Agent");
+        settings.addRequestHeader("Accept");
+        settings.addResponseHeader("Location");
+
+        // when
+        String document = serialize();
+
+        // then
+        assertThat(document, is("{\"@timestamp\":\"" + timestamp() + "\",\"request_headers\":{\"user-agent\":\"curl\"}}"));
+    }
+
+    @Test
+    public void should_write_content_only_when_included() throws Exception {
+        // given
+        String withoutContent = serialize();
+        settings.setIncludeRequestContent(true);
+        settings.setIncludeResponseContent(true);
+
+        // when
+        String withContent = serialize();
+
+        // then
+        assertThat(withoutContent, is("{\"@timestamp\":\"" + timestamp() + "\"}"));
+        assertThat(withContent, is("{\"@timestamp\":\"" + timestamp() + "\",\"request_content\":\"{\\\"q\\\":1}\",\"response_content\":\"not found\"}"));
+    }
+
+    // The source line of the only document
+    private String serialize() throws Exception {
+        ContextBase context = new ContextBase();
+        AccessElasticsearchPublisher publisher = new AccessElasticsearchPublisher(context, errorReporter, settings, null, new HttpRequestHeaders());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.serializeEvents(out, Collections.singletonList(event));
+        publisher.close();
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertThat(lines.length, is(2));
+        return lines[1];
+    }
+
+    private static String timestamp() {
+        return AbstractElasticsearchPublisher.getTimestamp(0L);
+    }
+}
@@ -0,0 +1,181 @@
+package com.internetitem.logback.elasticsearch;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.internetitem.logback.elasticsearch.config.ElasticsearchProperties;
+import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
+import com.internetitem.logback.elasticsearch.config.Property;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ClassicPropertyAndEncoder;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Guards against allocation regressions on the per-event path. The budgets (in bytes per event, averaged over many
+ * events after warming up) leave some room for differences between JVMs, but not for e.g. an extra copy of the
+ * message or a new String per field.
+ */
+public class AllocationBudgetTest {
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int EVENTS = 2000;
+
+    // Includes prepareForDeferredProcessing(), i.e. formatting the message and copying the MDC
+    private static final long APPEND_BUDGET = 512;
+    // Mostly the timestamp and the encoded patterns (index, properties), which are Strings by nature
+    private static final long SERIALIZE_BUDGET = 2048;
+    private static final long PROPERTY_BUDGET = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private LoggerContext context;
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        context = new LoggerContext();
+        logger = context.getLogger("test.allocation");
+    }
+
+    @After
+    public void tearDown() {
+        context.stop();
+    }
+
+    @Test
+    public void should_stay_within_budget_when_appending() throws Exception {
+        // given
+        Settings settings = new Settings();
+        settings.setIndex("logs-%date{yyyy-MM-dd}");
+        settings.setFile(new File(folder.getRoot(), "bulk.json").getPath());
+        ElasticsearchAppender appender = new ElasticsearchAppender(settings);
+        appender.setContext(context);
+        appender.start();
+
+        // when
+        long perEvent = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            List<ILoggingEvent> events = createEvents();
+            long before = allocatedBytes();
+            for (ILoggingEvent event : events) {
+                appender.doAppend(event);
+            }
+            perEvent = (allocatedBytes() - before) / EVENTS;
+            assertThat(appender.flush(10000), is(true));
+        }
+        appender.stop();
+
+        // then
+        assertWithinBudget(perEvent, APPEND_BUDGET);
+    }
+
+    @Test
+    public void should_stay_within_budget_when_serializing() throws Exception {
+        // given
+        Settings settings = new Settings();
+        settings.setIndex("logs-%date{yyyy-MM-dd}");
+        settings.setIncludeMdc(true);
+        ElasticsearchProperties properties = new ElasticsearchProperties();
+        properties.addProperty(new Property("severity", "%level", false));
+        properties.addProperty(new Property("host", "example.org", false));
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, properties, new HttpRequestHeaders());
+        OutputStream sink = new NullOutputStream();
+
+        // when
+        long perEvent = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            List<ILoggingEvent> events = createEvents();
+            for (ILoggingEvent event : events) {
+                event.prepareForDeferredProcessing();
+            }
+            long before = allocatedBytes();
+            publisher.serializeEvents(sink, events);
+            perEvent = (allocatedBytes() - before) / EVENTS;
+        }
+
+        // then
+        assertWithinBudget(perEvent, SERIALIZE_BUDGET);
+    }
+
+    @Test
+    public void should_stay_within_budget_when_serializing_properties() throws Exception {
+        // given
+        PropertySerializer<ILoggingEvent> propertySerializer = new PropertySerializer<>();
+        ClassicPropertyAndEncoder constant = new ClassicPropertyAndEncoder(new Property("host", "example.org", false), context);
+        Property numberProperty = new Property("count", "12345", false);
+        numberProperty.setType("int");
+        ClassicPropertyAndEncoder number = new ClassicPropertyAndEncoder(numberProperty, context);
+        JsonGenerator gen = new JsonFactory().createGenerator(new NullOutputStream());
+        ILoggingEvent event = createEvents().get(0);
+
+        // when
+        long perEvent = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < EVENTS; i++) {
+                gen.writeStartObject();
+                propertySerializer.serializeProperty(gen, event, constant);
+                propertySerializer.serializeProperty(gen, event, number);
+                gen.writeEndObject();
+            }
+            perEvent = (allocatedBytes() - before) / EVENTS;
+        }
+
+        // then
+        assertWithinBudget(perEvent, PROPERTY_BUDGET);
+    }
+
+    private List<ILoggingEvent> createEvents() {
+        List<ILoggingEvent> events = new ArrayList<>(EVENTS);
+        for (int i = 0; i < EVENTS; i++) {
+            events.add(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "message {}", null, new Object[] { i }));
+        }
+        return events;
+    }
+
+    private static void assertWithinBudget(long perEvent, long budget) {
+        assertTrue("Allocated " + perEvent + " bytes per event, budget is " + budget, perEvent <= budget);
+    }
+
+    private long allocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.internetitem.logback.elasticsearch;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.internetitem.logback.elasticsearch.config.Authentication;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.config.ElasticsearchProperties;
+import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
+import com.internetitem.logback.elasticsearch.config.Property;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.SmileSupport;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ClassicElasticsearchPublisherTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void should_serialize_slices_in_parallel_in_original_order() throws Exception {
+        // given
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.parallel");
+        List<ILoggingEvent> events = new ArrayList<>();
+        for (int i = 0; i < 1005; i++) {
+            LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "message {}", null, new Object[] { i });
+            event.prepareForDeferredProcessing();
+            events.add(event);
+        }
+        ElasticsearchProperties properties = new ElasticsearchProperties();
+        properties.addProperty(new Property("severity", "%level", false));
+
+        // when
+        ByteArrayOutputStream sequential = serialize(events, properties, 1);
+        ByteArrayOutputStream parallel = serialize(events, properties, 4);
+
+        // then
+        assertThat(parallel.toString("UTF-8"), is(sequential.toString("UTF-8")));
+    }
+
+    @Test
+    public void should_send_invalid_raw_json_as_string_in_fallback_field() throws Exception {
+        // given
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.raw");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setRawJsonMessage(true);
+        settings.setRawJsonFallbackField("raw_message");
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+        List<ILoggingEvent> events = new ArrayList<>();
+        for (String message : new String[] { "{\"a\":1}", "{\"a\":", "{\n  \"b\": [1, 2]\n}", "{} {}" }) {
+            events.add(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null, null));
+        }
+
+        // when
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.serializeEvents(out, events);
+
+        // then
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertThat(lines.length, is(8));
+        assertThat(lines[1].endsWith(",\"message\":{\"a\":1}}"), is(true));
+        assertThat(lines[3].endsWith(",\"raw_message\":\"{\\\"a\\\":\"}"), is(true));
+        assertThat(lines[5].endsWith(",\"message\":{\"b\":[1,2]}}"), is(true));
+        assertThat(lines[7].endsWith(",\"raw_message\":\"{} {}\"}"), is(true));
+        assertThat(publisher.getInvalidRawJsonCount(), is(2L));
+    }
+
+    @Test
+    public void should_send_same_generated_ids_when_streamed_request_is_retried() throws Exception {
+        // given
+        FakeElasticsearch server = new FakeElasticsearch();
+        final AtomicInteger attempts = new AtomicInteger();
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                if (attempts.incrementAndGet() == 1) {
+                    FakeElasticsearch.send(exchange, 500, "{}");
+                } else {
+                    FakeElasticsearch.send(exchange, 200, FakeElasticsearch.items(FakeElasticsearch.documentCount(body), 201));
+                }
+            }
+        });
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.ids");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setUrl(server.getUrl());
+        settings.setStreamingUpload(true);
+        settings.setGenerateDocumentIds(true);
+        settings.setSleepTime(10);
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            publisher.addEvent(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "same message", null, null));
+        }
+        boolean flushed = publisher.flush(5000);
+        publisher.close();
+        server.close();
+
+        // then
+        assertThat(flushed, is(true));
+        List<byte[]> bodies = server.getBodies();
+        assertThat(bodies.size(), is(2));
+        List<String> firstIds = ids(bodies.get(0));
+        assertThat(firstIds.size(), is(3));
+        assertThat(new HashSet<>(firstIds).size(), is(3));
+        assertThat(ids(bodies.get(1)), is(firstIds));
+    }
+
+    @Test
+    public void should_send_throttled_documents_of_streamed_request_again() throws Exception {
+        // given
+        FakeElasticsearch server = new FakeElasticsearch();
+        final AtomicInteger attempts = new AtomicInteger();
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                if (attempts.incrementAndGet() == 1) {
+                    FakeElasticsearch.send(exchange, 200, "{\"took\":1,\"errors\":true,\"items\":[{\"create\":{\"status\":201}},{\"create\":{\"status\":429}},{\"create\":{\"status\":201}}]}");
+                } else {
+                    FakeElasticsearch.send(exchange, 200, FakeElasticsearch.items(FakeElasticsearch.documentCount(body), 201));
+                }
+            }
+        });
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.throttled");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setUrl(server.getUrl());
+        settings.setStreamingUpload(true);
+        settings.setGenerateDocumentIds(true);
+        settings.setSleepTime(10);
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+
+        // when
+        for (String message : new String[] { "first", "second", "third" }) {
+            publisher.addEvent(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null, null));
+        }
+        boolean flushed = publisher.flush(5000);
+        publisher.close();
+        server.close();
+
+        // then
+        assertThat(flushed, is(true));
+        List<byte[]> bodies = server.getBodies();
+        assertThat(bodies.size(), is(2));
+        assertThat(messages(new String(bodies.get(0), "UTF-8")), is("first,second,third"));
+        assertThat(messages(new String(bodies.get(1), "UTF-8")), is("second"));
+        assertThat(ids(bodies.get(1)), is(Collections.singletonList(ids(bodies.get(0)).get(1))));
+    }
+
+    @Test
+    public void should_send_priority_events_right_away_in_requests_of_their_own() throws Exception {
+        // given
+        FakeElasticsearch server = new FakeElasticsearch();
+        File file = temporaryFolder.newFile("events.json");
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.priority");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setUrl(server.getUrl());
+        settings.setFile(file.getPath());
+        settings.setPriorityLevel("WARN");
+        settings.setSleepTime(60000);
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+
+        // when
+        publisher.addEvent(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "first", null, null));
+        publisher.addEvent(new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "second", null, null));
+        publisher.addEvent(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "third", null, null));
+        // Only priority events wake the publisher, so "second" must arrive long before sleepTime
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean sentRightAway = false;
+        while (!sentRightAway && System.currentTimeMillis() < deadline) {
+            for (byte[] body : server.getBodies()) {
+                sentRightAway |= messages(new String(body, "UTF-8")).contains("second");
+            }
+            Thread.sleep(10);
+        }
+        boolean flushed = publisher.flush(5000);
+        publisher.close();
+        server.close();
+
+        // then
+        assertThat(sentRightAway, is(true));
+        // Depending on when the publisher wakes up, "first" (and "third") may be sent along with "second", but never in
+        // the same request
+        List<String> priority = new ArrayList<>();
+        StringBuilder normal = new StringBuilder();
+        for (byte[] body : server.getBodies()) {
+            String messages = messages(new String(body, "UTF-8"));
+            if (messages.contains("second")) {
+                priority.add(messages);
+            } else {
+                normal.append(normal.length() > 0 ? "," : "").append(messages);
+            }
+        }
+        assertThat(priority, is(Collections.singletonList("second")));
+        assertThat(normal.toString(), is("first,third"));
+        assertThat(flushed, is(true));
+        assertThat(messages(new String(Files.readAllBytes(file.toPath()), "UTF-8")), is("first,second,third"));
+    }
+
+    @Test
+    public void should_write_smile_documents_with_header_and_separator_each() throws Exception {
+        // given
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.smile");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setFormat(BulkFormat.SMILE);
+        settings.setRawJsonMessage(true);
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+        List<ILoggingEvent> events = new ArrayList<>();
+        events.add(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "{\"a\":1}", null, null));
+        events.add(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "{\n  \"b\": [1, 2]\n}", null, null));
+
+        // when
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.serializeEvents(out, events);
+
+        // then
+        byte[] bytes = out.toByteArray();
+        assertThat(bytes[bytes.length - 1], is(BulkFormat.SMILE.getSeparator()));
+        List<String> records = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == BulkFormat.SMILE.getSeparator()) {
+                // Every record is a SMILE document of its own, starting with the ":)\n" header
+                assertThat(new String(bytes, start, 3, "UTF-8"), is(":)\n"));
+                records.add(SmileSupport.toJson(bytes, start, i - start));
+                start = i + 1;
+            }
+        }
+        assertThat(records.size(), is(4));
+        assertThat(records.get(0).startsWith("{\"index\":{"), is(true));
+        assertThat(records.get(1).endsWith(",\"message\":{\"a\":1}}"), is(true));
+        assertThat(records.get(3).endsWith(",\"message\":{\"b\":[1,2]}}"), is(true));
+    }
+
+    @Test
+    public void should_give_authentication_that_needs_the_body_a_buffered_json_body() throws Exception {
+        // given
+        FakeElasticsearch server = new FakeElasticsearch();
+        final List<String> authenticatedBodies = new ArrayList<>();
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.auth");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setUrl(server.getUrl());
+        settings.setFormat(BulkFormat.SMILE);
+        settings.setStreamingUpload(true);
+        settings.setAuthentication(new Authentication() {
+            @Override
+            public void addAuth(HttpURLConnection urlConnection, String body) {
+                authenticatedBodies.add(body);
+            }
+        });
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+
+        // when
+        publisher.addEvent(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "signed", null, null));
+        boolean flushed = publisher.flush(5000);
+        publisher.close();
+        server.close();
+
+        // then
+        assertThat(flushed, is(true));
+        assertThat(settings.getFormat(), is(BulkFormat.JSON));
+        assertThat(authenticatedBodies.size(), is(1));
+        assertThat(authenticatedBodies.get(0), is(new String(server.getBodies().get(0), "UTF-8")));
+        assertThat(messages(authenticatedBodies.get(0)), is("signed"));
+    }
+
+    @Test
+    public void should_generate_ids_for_events_without_level() throws Exception {
+        // given
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.nolevel");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setGenerateDocumentIds(true);
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+        List<ILoggingEvent> events = new ArrayList<>();
+        events.add(new LoggingEvent(Logger.class.getName(), logger, null, "first", null, null));
+        events.add(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "second", null, null));
+
+        // when
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.serializeEvents(out, events);
+        publisher.close();
+
+        // then
+        assertThat(messages(out.toString("UTF-8")), is("first,second"));
+        assertThat(new HashSet<>(ids(out.toByteArray())).size(), is(2));
+    }
+
+    @Test
+    public void should_write_routing_pipeline_and_op_type_into_action_lines() throws Exception {
+        // given
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.actions");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setRouting("%mdc{tenant}");
+        settings.setPipeline("%mdc{pipeline}");
+        settings.setOpType("%mdc{op}");
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+        List<ILoggingEvent> events = new ArrayList<>();
+        events.add(event(logger, "one", "tenant", "acme", "pipeline", "geoip", "op", "create"));
+        events.add(event(logger, "two", "op", "upsert"));
+
+        // when
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.serializeEvents(out, events);
+        publisher.close();
+
+        // then
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertThat(lines.length, is(4));
+        assertThat(lines[0], is("{\"create\":{\"_index\":\"logs\",\"routing\":\"acme\",\"pipeline\":\"geoip\"}}"));
+        assertThat(lines[2], is("{\"index\":{\"_index\":\"logs\"}}"));
+    }
+
+    @Test
+    public void should_sort_documents_by_routing_and_keep_order_within_each_routing_value() throws Exception {
+        // given
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test.routing");
+        Settings settings = new Settings();
+        settings.setIndex("logs");
+        settings.setRouting("%mdc{tenant}");
+        settings.setSortByRouting(true);
+        settings.setGenerateDocumentIds(true);
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, null, new HttpRequestHeaders());
+        List<ILoggingEvent> events = new ArrayList<>();
+        events.add(event(logger, "one", "tenant", "b"));
+        events.add(event(logger, "two", "tenant", "a"));
+        events.add(event(logger, "three", "tenant", "b"));
+        events.add(event(logger, "four"));
+        events.add(event(logger, "five", "tenant", "a"));
+
+        // when
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.serializeEvents(out, events);
+        publisher.close();
+
+        // then
+        String body = out.toString("UTF-8");
+        assertThat(messages(body), is("four,two,five,one,three"));
+        String[] lines = body.split("\n");
+        assertThat(lines[0].contains("\"routing\""), is(false));
+        assertThat(lines[2].contains("\"routing\":\"a\""), is(true));
+        assertThat(lines[4].contains("\"routing\":\"a\""), is(true));
+        assertThat(lines[6].contains("\"routing\":\"b\""), is(true));
+        assertThat(lines[8].contains("\"routing\":\"b\""), is(true));
+        assertThat(new HashSet<>(ids(out.toByteArray())).size(), is(5));
+    }
+
+    // An event with the given MDC entries (name, value, name, value...)
+    private static LoggingEvent event(Logger logger, String message, String... mdc) {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null, null);
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < mdc.length; i += 2) {
+            map.put(mdc[i], mdc[i + 1]);
+        }
+        event.setMDCPropertyMap(map);
+        return event;
+    }
+
+    private static String messages(String body) {
+        StringBuilder messages = new StringBuilder();
+        Matcher matcher = Pattern.compile("\"message\":\"([a-z]+)\"").matcher(body);
+        while (matcher.find()) {
+            messages.append(messages.length() > 0 ? "," : "").append(matcher.group(1));
+        }
+        return messages.toString();
+    }
+
+    private static List<String> ids(byte[] body) throws Exception {
+        List<String> ids = new ArrayList<>();
+        Matcher matcher = Pattern.compile("\\{\"create\":\\{[^}]*\"_id\":\"([0-9a-f]+)\"").matcher(new String(body, "UTF-8"));
+        while (matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        return ids;
+    }
+
+    private static ByteArrayOutputStream serialize(List<ILoggingEvent> events, ElasticsearchProperties properties, int threads) throws Exception {
+        LoggerContext context = new LoggerContext();
+        Settings settings = new Settings();
+        settings.setIndex("logs-%date{yyyy-MM-dd}");
+        settings.setSerializationThreads(threads);
+        settings.setSerializationSliceSize(100);
+        ClassicElasticsearchPublisher publisher = new ClassicElasticsearchPublisher(context, new ErrorReporter(settings, context), settings, properties, new HttpRequestHeaders());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.serializeEvents(out, events);
+        publisher.close();
+        return out;
+    }
+}
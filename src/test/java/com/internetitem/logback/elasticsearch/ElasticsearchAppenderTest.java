@@ -1,9 +1,13 @@
 package com.internetitem.logback.elasticsearch;
 
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Context;
 import com.internetitem.logback.elasticsearch.config.ElasticsearchProperties;
+import com.internetitem.logback.elasticsearch.config.FileFormat;
+import com.internetitem.logback.elasticsearch.config.LoggerRule;
+import com.internetitem.logback.elasticsearch.config.LoggerRules;
 import com.internetitem.logback.elasticsearch.config.Settings;
 import com.internetitem.logback.elasticsearch.util.ErrorReporter;
 import org.hamcrest.core.IsInstanceOf;
@@ -154,6 +158,100 @@ public class ElasticsearchAppenderTest {
         verify(elasticsearchPublisher, times(1)).addEvent(eventToPublish);
     }
 
+    @Test
+    public void should_apply_most_specific_logger_rule() {
+        ILoggingEvent debugEvent = mock(ILoggingEvent.class);
+        given(debugEvent.getLoggerName()).willReturn("com.example.audit.Login");
+        given(debugEvent.getLevel()).willReturn(Level.DEBUG);
+        ILoggingEvent infoEvent = mock(ILoggingEvent.class);
+        given(infoEvent.getLoggerName()).willReturn("com.example.other");
+        given(infoEvent.getLevel()).willReturn(Level.INFO);
+        ILoggingEvent disabledEvent = mock(ILoggingEvent.class);
+        given(disabledEvent.getLoggerName()).willReturn("com.example.noisy.Wire");
+        given(disabledEvent.getLevel()).willReturn(Level.ERROR);
+
+        LoggerRules rules = new LoggerRules();
+        LoggerRule root = new LoggerRule();
+        root.setLogger("ROOT");
+        root.setLevel("WARN");
+        rules.addRule(root);
+        LoggerRule audit = new LoggerRule();
+        audit.setLogger("com.example.audit");
+        audit.setLevel("DEBUG");
+        rules.addRule(audit);
+        rules.addRule(new LoggerRule("com.example.noisy", false));
+        ((ElasticsearchAppender) appender).setLoggerRules(rules);
+        appender.start();
+
+
+        appender.append(debugEvent);
+        appender.append(infoEvent);
+        appender.append(disabledEvent);
+
+        verify(elasticsearchPublisher, times(1)).addEvent(debugEvent);
+        verify(elasticsearchPublisher, never()).addEvent(infoEvent);
+        verify(elasticsearchPublisher, never()).addEvent(disabledEvent);
+    }
+
+    @Test
+    public void should_not_publish_events_of_logger_when_a_rule_enables_it() {
+        String loggerName = "elastic-debug-log";
+        ILoggingEvent outputEvent = mock(ILoggingEvent.class);
+        given(outputEvent.getLoggerName()).willReturn(loggerName);
+        given(outputEvent.getLevel()).willReturn(Level.INFO);
+        ILoggingEvent childEvent = mock(ILoggingEvent.class);
+        given(childEvent.getLoggerName()).willReturn(loggerName + ".child");
+        given(childEvent.getLevel()).willReturn(Level.INFO);
+
+        LoggerRules rules = new LoggerRules();
+        LoggerRule rule = new LoggerRule(loggerName, true);
+        rule.setLevel("DEBUG");
+        rules.addRule(rule);
+        ((ElasticsearchAppender) appender).setLoggerRules(rules);
+        appender.setLoggerName(loggerName);
+        appender.start();
+
+
+        appender.append(outputEvent);
+        appender.append(childEvent);
+
+        verify(elasticsearchPublisher, never()).addEvent(outputEvent);
+        verify(elasticsearchPublisher, times(1)).addEvent(childEvent);
+    }
+
+    @Test
+    public void should_keep_logger_disabled_when_more_specific_rule_does_not_set_enabled() {
+        ILoggingEvent event = mock(ILoggingEvent.class);
+        given(event.getLoggerName()).willReturn("com.example.noisy.Wire");
+        given(event.getLevel()).willReturn(Level.ERROR);
+
+        LoggerRules rules = new LoggerRules();
+        rules.addRule(new LoggerRule("com.example.noisy", false));
+        LoggerRule wire = new LoggerRule();
+        wire.setLogger("com.example.noisy.Wire");
+        wire.setLevel("WARN");
+        rules.addRule(wire);
+        ((ElasticsearchAppender) appender).setLoggerRules(rules);
+        appender.start();
+
+
+        appender.append(event);
+
+        verify(elasticsearchPublisher, never()).addEvent(event);
+    }
+
+    @Test
+    public void should_flush_pending_events_when_stopped() {
+        given(elasticsearchPublisher.flush(1234)).willReturn(true);
+
+        appender.setShutdownTimeout(1234);
+        appender.start();
+        appender.stop();
+
+        verify(elasticsearchPublisher, times(1)).flush(1234);
+        verifyZeroInteractions(errorReporter);
+    }
+
     @Test
     public void should_create_error_reporter_with_same_context() {
         ElasticsearchAppender appender = new ElasticsearchAppender(){
@@ -202,6 +300,7 @@ public class ElasticsearchAppenderTest {
         appender.setConnectTimeout(connectTimeout);
         appender.setRawJsonMessage(rawJsonMessage);
         appender.setIncludeMdc(includeMdc);
+        appender.setFileFormat(" Documents ");
 
         verify(settings, times(1)).setReadTimeout(readTimeout);
         verify(settings, times(1)).setSleepTime(aSleepTime);
@@ -218,6 +317,7 @@ public class ElasticsearchAppenderTest {
         verify(settings, times(1)).setConnectTimeout(connectTimeout);
         verify(settings, times(1)).setRawJsonMessage(rawJsonMessage);
         verify(settings, times(1)).setIncludeMdc(includeMdc);
+        verify(settings, times(1)).setFileFormat(FileFormat.DOCUMENTS);
     }
 
 
@@ -0,0 +1,123 @@
+package com.internetitem.logback.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bulk endpoint on a local port that records the requests it gets and answers them as told by a Responder (by
+ * default, accepting every document)
+ */
+public class FakeElasticsearch implements Closeable {
+
+    public interface Responder {
+        void respond(HttpExchange exchange, byte[] body) throws IOException;
+    }
+
+    private final HttpServer server;
+    private final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final List<String> contentTypes = Collections.synchronizedList(new ArrayList<String>());
+    private volatile Responder responder = accepting();
+
+    public FakeElasticsearch() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/_bulk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readAll(exchange.getRequestBody());
+                bodies.add(body);
+                contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+                try {
+                    responder.respond(exchange, body);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/_bulk");
+    }
+
+    public void setResponder(Responder responder) {
+        this.responder = responder;
+    }
+
+    public List<byte[]> getBodies() {
+        synchronized (bodies) {
+            return new ArrayList<byte[]>(bodies);
+        }
+    }
+
+    public List<String> getContentTypes() {
+        synchronized (contentTypes) {
+            return new ArrayList<String>(contentTypes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    public static Responder accepting() {
+        return new Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                send(exchange, 200, items(documentCount(body), 201));
+            }
+        };
+    }
+
+    /**
+     * @return number of documents in a JSON bulk request
+     */
+    public static int documentCount(byte[] body) {
+        int lines = 0;
+        for (byte b : body) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        return lines / 2;
+    }
+
+    public static String items(int documents, int status) {
+        StringBuilder body = new StringBuilder("{\"took\":1,\"errors\":").append(status >= 300).append(",\"items\":[");
+        for (int i = 0; i < documents; i++) {
+            body.append(i > 0 ? "," : "").append("{\"index\":{\"status\":").append(status).append("}}");
+        }
+        return body.append("]}").toString();
+    }
+
+    public static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            bytes.write(buf, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,170 @@
+package com.internetitem.logback.elasticsearch;
+
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HeapPressureMonitorTest {
+
+    private static final long MAX = 1000;
+
+    @Mock
+    private ErrorReporter errorReporter;
+    @Mock
+    private HeapPressureMonitor.Listener listener;
+    @Mock
+    private MemoryPoolMXBean pool;
+    @Mock
+    private NotificationEmitter emitter;
+
+    private Settings settings;
+    private long poolThreshold;
+
+    @Before
+    public void setUp() {
+        settings = new Settings();
+        settings.setHeapPressureThreshold(80);
+        given(pool.getName()).willReturn("test-old-gen");
+        given(pool.getUsage()).willReturn(new MemoryUsage(0, 0, MAX, MAX));
+        usedAfterGc(0);
+    }
+
+    @Test
+    public void should_step_up_on_each_notification_while_above_threshold() {
+        // given
+        HeapPressureMonitor monitor = monitor(60000);
+        usedAfterGc(900);
+
+        // when
+        monitor.handleNotification(thresholdExceeded(), null);
+        monitor.handleNotification(thresholdExceeded(), null);
+
+        // then
+        assertThat(monitor.getMode(), is(HeapPressureMonitor.Mode.SAMPLE_LOW_LEVELS));
+        assertThat(monitor.capturesCallerData(), is(false));
+        assertThat(monitor.getTransitionCount(), is(2L));
+        verify(listener).onHeapPressure(HeapPressureMonitor.Mode.NO_CALLER_DATA);
+        verify(listener).onHeapPressure(HeapPressureMonitor.Mode.SAMPLE_LOW_LEVELS);
+    }
+
+    @Test
+    public void should_step_down_once_below_recovery() {
+        // given
+        HeapPressureMonitor monitor = monitor(0);
+        usedAfterGc(900);
+        monitor.handleNotification(thresholdExceeded(), null);
+        monitor.handleNotification(thresholdExceeded(), null);
+
+        // when
+        usedAfterGc(750);
+        HeapPressureMonitor.Mode between = monitor.getMode();
+        usedAfterGc(500);
+        HeapPressureMonitor.Mode first = monitor.getMode();
+        HeapPressureMonitor.Mode second = monitor.getMode();
+
+        // then
+        assertThat(between, is(HeapPressureMonitor.Mode.SAMPLE_LOW_LEVELS));
+        assertThat(first, is(HeapPressureMonitor.Mode.NO_CALLER_DATA));
+        assertThat(second, is(HeapPressureMonitor.Mode.NORMAL));
+        assertThat(monitor.capturesCallerData(), is(true));
+    }
+
+    @Test
+    public void should_sample_events_below_warn() {
+        // given
+        HeapPressureMonitor monitor = monitor(60000);
+        usedAfterGc(900);
+        monitor.handleNotification(thresholdExceeded(), null);
+        monitor.handleNotification(thresholdExceeded(), null);
+
+        // when
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (monitor.accepts(true)) {
+                accepted++;
+            }
+        }
+
+        // then
+        assertThat(accepted, is(2));
+        assertThat(monitor.accepts(false), is(true));
+        assertThat(monitor.getShedCount(), is(18L));
+    }
+
+    @Test
+    public void should_restore_previous_threshold_once_all_monitors_stopped() throws Exception {
+        // given
+        poolThreshold = 900;
+        HeapPressureMonitor first = monitor(60000);
+        settings.setHeapPressureThreshold(70);
+        HeapPressureMonitor second = monitor(60000);
+
+        // when
+        first.start();
+        long afterFirst = poolThreshold;
+        second.start();
+        long afterSecond = poolThreshold;
+        second.stop();
+        long afterSecondStopped = poolThreshold;
+        first.stop();
+
+        // then
+        assertThat(afterFirst, is(800L));
+        assertThat(afterSecond, is(700L));
+        assertThat(afterSecondStopped, is(800L));
+        assertThat(poolThreshold, is(900L));
+        verify(emitter).addNotificationListener(first, null, null);
+        verify(emitter).removeNotificationListener(first);
+    }
+
+    private HeapPressureMonitor monitor(long checkInterval) {
+        trackThreshold();
+        return new HeapPressureMonitor(errorReporter, settings, listener, Collections.singletonList(pool), emitter, checkInterval);
+    }
+
+    // Makes the mocked pool remember its threshold in poolThreshold
+    private void trackThreshold() {
+        given(pool.getCollectionUsageThreshold()).willAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return poolThreshold;
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                poolThreshold = (Long) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(pool).setCollectionUsageThreshold(anyLong());
+    }
+
+    private void usedAfterGc(long used) {
+        given(pool.getCollectionUsage()).willReturn(new MemoryUsage(0, used, MAX, MAX));
+    }
+
+    private static Notification thresholdExceeded() {
+        return new Notification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED, "test", 1);
+    }
+}
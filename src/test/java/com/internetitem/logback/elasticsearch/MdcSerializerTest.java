@@ -0,0 +1,67 @@
+package com.internetitem.logback.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MdcSerializerTest {
+
+    @Test
+    public void should_write_only_included_keys_renamed_and_typed() throws Exception {
+        // given
+        Settings settings = new Settings();
+        settings.addMdcIncludeKey("user");
+        settings.addMdcIncludeKey("elapsed");
+        settings.addMdcIncludeKey("missing");
+        settings.addMdcField("user=user.name");
+        settings.addMdcField("elapsed:long");
+        settings.setMdcPrefix("mdc.");
+        Map<String, String> mdc = new LinkedHashMap<>();
+        mdc.put("stray", "x");
+        mdc.put("elapsed", "1234567890123");
+        mdc.put("user", "bob");
+
+        // when
+        String json = serialize(new MdcSerializer(settings), mdc);
+
+        // then
+        assertThat(json, is("{\"mdc.user.name\":\"bob\",\"mdc.elapsed\":1234567890123}"));
+    }
+
+    @Test
+    public void should_skip_excluded_keys_and_fall_back_to_string() throws Exception {
+        // given
+        Settings settings = new Settings();
+        settings.addMdcExcludeKey("secret");
+        settings.addMdcField("count:int");
+        Map<String, String> mdc = new LinkedHashMap<>();
+        mdc.put("secret", "x");
+        mdc.put("count", "many");
+        mdc.put("other", "y");
+
+        // when
+        String json = serialize(new MdcSerializer(settings), mdc);
+
+        // then
+        assertThat(json, is("{\"count\":\"many\",\"other\":\"y\"}"));
+    }
+
+    private static String serialize(MdcSerializer mdcSerializer, Map<String, String> mdc) throws Exception {
+        StringWriter out = new StringWriter();
+        JsonGenerator gen = new JsonFactory().createGenerator(out);
+        gen.writeStartObject();
+        mdcSerializer.serialize(gen, mdc, new PropertySerializer<Object>());
+        gen.writeEndObject();
+        gen.close();
+        return out.toString();
+    }
+
+}
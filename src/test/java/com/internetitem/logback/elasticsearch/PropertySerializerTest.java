@@ -3,13 +3,18 @@ package com.internetitem.logback.elasticsearch;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Context;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.internetitem.logback.elasticsearch.config.Property;
+import com.internetitem.logback.elasticsearch.config.Settings;
 import com.internetitem.logback.elasticsearch.util.ClassicPropertyAndEncoder;
+import com.internetitem.logback.elasticsearch.util.CountingOutputStream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayOutputStream;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.verify;
@@ -138,4 +143,49 @@ public class PropertySerializerTest {
         // then
         verify(jsonGenerator).writeObject("value");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_truncate_value_longer_than_max_size() throws Exception {
+        // given
+        Property property = new Property();
+        property.setName("field");
+        property.setValue("abcdefgh");
+        property.setMaxSize(5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = new JsonFactory().createGenerator(out);
+
+        // when
+        generator.writeStartObject();
+        propertySerializer.serializeProperty(generator, loggingEvent, new ClassicPropertyAndEncoder(property, context));
+        generator.writeEndObject();
+        generator.close();
+
+        // then
+        assertThat(out.toString("UTF-8"), is("{\"field\":\"abcde..\"}"));
+        assertThat(propertySerializer.getTruncatedCount(), is(1L));
+    }
+
+    @Test
+    public void should_truncate_and_then_drop_fields_exceeding_document_size() throws Exception {
+        // given
+        Settings settings = new Settings();
+        settings.setMaxDocumentSize(30);
+        PropertySerializer<ILoggingEvent> serializer = new PropertySerializer<>(settings);
+        CountingOutputStream out = new CountingOutputStream(new ByteArrayOutputStream());
+        JsonGenerator generator = new JsonFactory().createGenerator(out);
+
+        // when
+        serializer.startDocument(out, generator);
+        generator.writeStartObject();
+        serializer.writeStringField(generator, "a", "0123456789", -1);
+        serializer.writeStringField(generator, "b", "0123456789", -1);
+        serializer.writeStringField(generator, "c", "0123456789", -1);
+        generator.writeEndObject();
+        generator.close();
+
+        // then
+        assertThat(out.getCount() <= 30, is(true));
+        assertThat(serializer.getTruncatedCount(), is(1L));
+        assertThat(serializer.getDroppedCount(), is(1L));
+    }
+}
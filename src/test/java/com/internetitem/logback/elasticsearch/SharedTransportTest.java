@@ -0,0 +1,185 @@
+package com.internetitem.logback.elasticsearch;
+
+import com.internetitem.logback.elasticsearch.config.ExecutionMode;
+import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.WorkerThreadFactory;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+
+import static com.internetitem.logback.elasticsearch.FakeElasticsearch.documentCount;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SharedTransportTest {
+
+    @Mock
+    private ErrorReporter firstReporter;
+
+    @Mock
+    private ErrorReporter secondReporter;
+
+    private FakeElasticsearch server;
+    private volatile boolean failing;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeElasticsearch();
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                if (failing) {
+                    FakeElasticsearch.send(exchange, 500, "{}");
+                } else {
+                    FakeElasticsearch.send(exchange, 200, FakeElasticsearch.items(documentCount(body), 201));
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void should_send_documents_of_two_appenders_through_one_transport() throws Exception {
+        // given
+        SharedTransport.SharedWriter first = acquire(settings(), firstReporter);
+        SharedTransport.SharedWriter second = acquire(settings(), secondReporter);
+
+        // when
+        write(first, "first");
+        write(second, "second");
+        first.sendData();
+        second.sendData();
+
+        // then
+        assertThat(first.getTransport(), is(sameInstance(second.getTransport())));
+        assertThat(first.hasPendingData(), is(false));
+        assertThat(second.hasPendingData(), is(false));
+        int documents = 0;
+        for (byte[] body : server.getBodies()) {
+            documents += documentCount(body);
+        }
+        assertThat(documents, is(2));
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void should_enforce_max_queue_size_for_each_appender() throws Exception {
+        // given
+        failing = true;
+        Settings smallSettings = settings();
+        smallSettings.setMaxQueueSize(100);
+        SharedTransport.SharedWriter small = acquire(smallSettings, firstReporter);
+        SharedTransport.SharedWriter large = acquire(settings(), secondReporter);
+        WriterPipeline smallPipeline = pipeline(small, smallSettings, firstReporter);
+        WriterPipeline largePipeline = pipeline(large, settings(), secondReporter);
+        byte[] batch = document("x", 60);
+
+        // when
+        boolean smallFirst = smallPipeline.offer(batch, 1);
+        boolean smallSecond = smallPipeline.offer(batch, 2);
+        boolean largeFirst = largePipeline.offer(batch, 1);
+        boolean largeSecond = largePipeline.offer(batch, 2);
+        failing = false;
+
+        // then
+        assertThat(smallFirst, is(true));
+        assertThat(smallSecond, is(false));
+        assertThat(largeFirst, is(true));
+        assertThat(largeSecond, is(true));
+        long deadline = System.currentTimeMillis() + 10000;
+        assertThat(smallPipeline.awaitAcknowledged(2, deadline), is(true));
+        assertThat(largePipeline.awaitAcknowledged(2, deadline), is(true));
+        assertThat(smallPipeline.isLost(0, 2), is(true));
+        assertThat(largePipeline.isLost(0, 2), is(false));
+
+        small.close();
+        large.close();
+    }
+
+    @Test
+    public void should_report_to_remaining_appender_and_close_with_the_last() throws Exception {
+        // given
+        Settings settings = settings();
+        SharedTransport.SharedWriter first = acquire(settings, firstReporter);
+        SharedTransport.SharedWriter second = acquire(settings, secondReporter);
+        first.close();
+        SharedTransport.SharedWriter third = acquire(settings, secondReporter);
+        assertThat(third.getTransport(), is(sameInstance(second.getTransport())));
+
+        // when
+        failing = true;
+        write(second, "second");
+        try {
+            second.sendData();
+            fail("Expected the transport to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        failing = false;
+        second.sendData();
+        second.close();
+        third.close();
+        SharedTransport.SharedWriter fourth = acquire(settings, secondReporter);
+
+        // then
+        verify(firstReporter, never()).logWarning(anyString());
+        verify(secondReporter, atLeastOnce()).logWarning(contains("Failed to send events"));
+        assertThat(fourth.getTransport(), is(not(sameInstance(second.getTransport()))));
+        fourth.close();
+    }
+
+    private Settings settings() throws IOException {
+        Settings settings = new Settings();
+        settings.setUrl(server.getUrl());
+        settings.setSharedTransport(true);
+        settings.setSleepTime(500);
+        settings.setNodePenaltyTime(0);
+        return settings;
+    }
+
+    private static SharedTransport.SharedWriter acquire(Settings settings, ErrorReporter errorReporter) {
+        return SharedTransport.acquire(settings, new HttpRequestHeaders(), errorReporter, new WorkerThreadFactory(ExecutionMode.PLATFORM, errorReporter));
+    }
+
+    private static WriterPipeline pipeline(SharedTransport.SharedWriter writer, Settings settings, ErrorReporter errorReporter) {
+        return new WriterPipeline(writer, settings, errorReporter, new WorkerThreadFactory(ExecutionMode.PLATFORM, errorReporter));
+    }
+
+    private static void write(SharedTransport.SharedWriter writer, String value) {
+        byte[] document = document(value, 0);
+        writer.write(document, 0, document.length);
+    }
+
+    // A document padded to at least the given size
+    private static byte[] document(String value, int size) {
+        StringBuilder document = new StringBuilder("{\"index\":{}}\n{\"value\":\"").append(value);
+        while (document.length() < size - 3) {
+            document.append(' ');
+        }
+        return document.append("\"}\n").toString().getBytes();
+    }
+
+}
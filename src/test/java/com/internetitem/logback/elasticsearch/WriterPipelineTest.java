@@ -0,0 +1,119 @@
+package com.internetitem.logback.elasticsearch;
+
+import ch.qos.logback.classic.LoggerContext;
+import com.internetitem.logback.elasticsearch.config.ExecutionMode;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.WorkerThreadFactory;
+import com.internetitem.logback.elasticsearch.writer.SafeWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WriterPipelineTest {
+
+    @Test
+    public void should_report_batches_dropped_on_overflow_as_lost() throws Exception {
+        // given
+        Settings settings = new Settings();
+        settings.setSleepTime(10);
+        ErrorReporter errorReporter = new ErrorReporter(settings, new LoggerContext());
+        BlockingWriter writer = new BlockingWriter();
+        WriterPipeline pipeline = new WriterPipeline(writer, settings, errorReporter, new WorkerThreadFactory(ExecutionMode.PLATFORM, errorReporter), 10);
+
+        // when
+        assertThat(pipeline.offer(new byte[6], 1), is(true));
+        assertThat(writer.sending.await(5, TimeUnit.SECONDS), is(true));
+        boolean secondAccepted = pipeline.offer(new byte[6], 2);
+        boolean thirdAccepted = pipeline.offer(new byte[4], 3);
+        writer.release.countDown();
+
+        // then
+        assertThat(secondAccepted, is(false));
+        assertThat(thirdAccepted, is(true));
+        assertThat(pipeline.awaitAcknowledged(3, System.currentTimeMillis() + 5000), is(true));
+        assertThat(writer.written, is(10));
+        assertThat(pipeline.isLost(0, 1), is(false));
+        assertThat(pipeline.isLost(0, 3), is(true));
+        assertThat(pipeline.isLost(2, 3), is(false));
+        // Forgotten once asked about anything after it
+        assertThat(pipeline.isLost(0, 3), is(false));
+    }
+
+    @Test
+    public void should_not_make_waiting_caller_wait_for_sleep_time_when_writer_needs_another_round() throws Exception {
+        // given
+        Settings settings = new Settings();
+        settings.setSleepTime(60000);
+        ErrorReporter errorReporter = new ErrorReporter(settings, new LoggerContext());
+        TwoRoundWriter writer = new TwoRoundWriter();
+        WriterPipeline pipeline = new WriterPipeline(writer, settings, errorReporter, new WorkerThreadFactory(ExecutionMode.PLATFORM, errorReporter));
+
+        // when
+        pipeline.offer(new byte[6], 1);
+        boolean acknowledged = pipeline.awaitAcknowledged(1, System.currentTimeMillis() + 5000);
+
+        // then
+        assertThat(acknowledged, is(true));
+        assertThat(writer.rounds, is(2));
+    }
+
+    // Keeps its data pending for one more round after writing it (like a file that still has to be synced)
+    private static class TwoRoundWriter implements SafeWriter {
+        private volatile boolean pending;
+        private volatile int rounds;
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            pending = true;
+        }
+
+        @Override
+        public void sendData() {
+            if (pending && rounds++ > 0) {
+                pending = false;
+            }
+        }
+
+        @Override
+        public boolean hasPendingData() {
+            return pending;
+        }
+    }
+
+    // Holds on to the first batch until released, so that the following ones have to wait
+    private static class BlockingWriter implements SafeWriter {
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile int pending;
+        private volatile int written;
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            pending += len;
+        }
+
+        @Override
+        public void sendData() throws IOException {
+            sending.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            written += pending;
+            pending = 0;
+        }
+
+        @Override
+        public boolean hasPendingData() {
+            return pending > 0;
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.internetitem.logback.elasticsearch.config.Property;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ClassicPropertyAndEncoderTest {
+
+    private final LoggerContext context = new LoggerContext();
+    private final LoggingEvent event = new LoggingEvent(Logger.class.getName(), context.getLogger("test.encoder"), Level.WARN, "message", null, null);
+
+    @Test
+    public void should_render_patterns_without_conversion_words_once_and_like_the_layout_would() {
+        for (String pattern : new String[] { "static", "tab\\there", "(grouped) value", "" }) {
+            // given
+            ClassicPropertyAndEncoder encoder = new ClassicPropertyAndEncoder(new Property("name", pattern, false), context);
+
+            // when
+            String withEvent = encoder.encode(event);
+            String withoutEvent = encoder.encode(null);
+
+            // then
+            assertThat(pattern, encoder.isConstant(), is(true));
+            assertThat(pattern, withEvent, is(layout(pattern)));
+            assertThat(pattern, withoutEvent, is(withEvent));
+        }
+    }
+
+    @Test
+    public void should_render_patterns_with_conversion_words_for_each_event() {
+        for (String pattern : new String[] { "%level", "100\\% %logger" }) {
+            // given
+            ClassicPropertyAndEncoder encoder = new ClassicPropertyAndEncoder(new Property("name", pattern, false), context);
+
+            // when
+            String value = encoder.encode(event);
+
+            // then
+            assertThat(pattern, encoder.isConstant(), is(false));
+            assertThat(pattern, value, is(layout(pattern)));
+        }
+    }
+
+    private String layout(String pattern) {
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern(pattern);
+        layout.setPostCompileProcessor(null);
+        layout.start();
+        return layout.doLayout(event);
+    }
+}
@@ -0,0 +1,26 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class DocumentIdsTest {
+
+    @Test
+    public void should_generate_distinct_ids_for_identical_events() {
+        long hash = DocumentIds.hash(DocumentIds.hash(DocumentIds.startHash(), 1234567890L), "same message");
+
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            String id = DocumentIds.next(hash);
+            assertThat(id.length(), is(32));
+            ids.add(id);
+        }
+
+        assertThat(ids.size(), is(10000));
+    }
+}
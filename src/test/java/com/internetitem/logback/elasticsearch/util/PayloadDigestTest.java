@@ -0,0 +1,55 @@
+package com.internetitem.logback.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PayloadDigestTest {
+
+    @Test
+    public void should_match_payload_written_in_several_parts() throws Exception {
+        byte[] payload = "{\"message\":\"café € 😀\"}\n".getBytes("UTF-8");
+        int split = 7;
+
+        PayloadDigest digest = new PayloadDigest(true);
+        digest.update(payload, 0, split);
+        digest.update(payload, split, payload.length - split);
+        PayloadDigest counter = new PayloadDigest(false);
+        counter.update(payload, 0, payload.length);
+
+        assertThat(digest.getContentLength(), is((long) payload.length));
+        assertThat(counter.getContentLength(), is((long) payload.length));
+        assertThat(digest.getSha256Hex(), is(sha256(payload)));
+    }
+
+    @Test
+    public void should_keep_accepting_updates_after_hash_was_read() throws Exception {
+        PayloadDigest digest = new PayloadDigest(true);
+        digest.update("first".getBytes("UTF-8"), 0, 5);
+        assertThat(digest.getSha256Hex(), is(sha256("first".getBytes("UTF-8"))));
+
+        digest.update("second".getBytes("UTF-8"), 0, 6);
+
+        assertThat(digest.getSha256Hex(), is(sha256("firstsecond".getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void should_start_over_after_reset() throws Exception {
+        PayloadDigest digest = new PayloadDigest(true);
+        digest.update("discarded".getBytes("UTF-8"), 0, 9);
+        digest.reset();
+        digest.update("kept".getBytes("UTF-8"), 0, 4);
+
+        assertThat(digest.getContentLength(), is(4L));
+        assertThat(digest.getSha256Hex(), is(sha256("kept".getBytes("UTF-8"))));
+    }
+
+    private static String sha256(byte[] payload) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(payload);
+        return String.format("%064x", new BigInteger(1, hash));
+    }
+}
@@ -0,0 +1,87 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import com.internetitem.logback.elasticsearch.util.SegmentPool;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BulkBufferTest {
+
+    @Test
+    public void should_keep_only_retained_documents_and_incomplete_tail() throws Exception {
+        // given
+        BulkBuffer buffer = new BulkBuffer((byte) '\n', new SegmentPool(1024, false, 0, 0));
+        byte[] data = "a1\nd1\na2\nd2\na3\nd3\na4".getBytes("UTF-8");
+        buffer.append(data, 0, data.length);
+        assertThat(buffer.documentCount(), is(3));
+
+        // when
+        BitSet keep = new BitSet();
+        keep.set(1);
+        buffer.retain(keep);
+        byte[] rest = "\nd4\n".getBytes("UTF-8");
+        buffer.append(rest, 0, rest.length);
+
+        // then
+        assertThat(contents(buffer, 0, buffer.length()), is("a2\nd2\na4\nd4\n"));
+        assertThat(buffer.documentCount(), is(2));
+        assertThat(buffer.documentStart(1), is(6));
+        assertThat(buffer.documentEnd(1), is(12));
+    }
+
+    @Test
+    public void should_read_ranges_across_direct_segments() throws Exception {
+        // given
+        SegmentPool pool = new SegmentPool(1024, true, 4096, 0);
+        BulkBuffer buffer = new BulkBuffer((byte) '\n', pool);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            expected.append("{\"index\":{}}\n{\"n\":").append(i).append("}\n");
+        }
+        byte[] data = expected.toString().getBytes("UTF-8");
+
+        // when
+        buffer.append(data, 0, data.length);
+
+        // then
+        assertThat(buffer.documentCount(), is(300));
+        assertThat(contents(buffer, buffer.documentStart(150), buffer.documentEnd(150)), is("{\"index\":{}}\n{\"n\":150}\n"));
+        assertThat(contents(buffer, 0, buffer.length()), is(expected.toString()));
+
+        buffer.clear();
+        assertThat(pool.getPooledCount(), is(4));
+    }
+
+    @Test
+    public void should_reuse_cleared_direct_segments() throws Exception {
+        // given
+        SegmentPool pool = new SegmentPool(1024, true, 4096, 0);
+        BulkBuffer buffer = new BulkBuffer((byte) '\n', pool);
+        byte[] first = new byte[1500];
+        Arrays.fill(first, (byte) 'x');
+        buffer.append(first, 0, first.length);
+        assertThat(contents(buffer, 1000, 1500).length(), is(500));
+
+        // when
+        buffer.clear();
+        byte[] second = "{\"index\":{}}\n{\"n\":1}\n".getBytes("UTF-8");
+        buffer.append(second, 0, second.length);
+
+        // then
+        assertThat(pool.getPooledCount(), is(1));
+        assertThat(buffer.documentCount(), is(1));
+        assertThat(contents(buffer, 0, buffer.length()), is("{\"index\":{}}\n{\"n\":1}\n"));
+    }
+
+    private static String contents(BulkBuffer buffer, int from, int to) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out, from, to);
+        return out.toString("UTF-8");
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BulkResponseTest {
+
+    @Test
+    public void should_parse_took_and_item_statuses_and_errors() throws Exception {
+        // given
+        String json = "{\"took\":42,\"errors\":true,\"items\":["
+            + "{\"index\":{\"_index\":\"logs\",\"status\":201}},"
+            + "{\"create\":{\"_index\":\"logs\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse [n]\",\"caused_by\":{\"type\":\"number_format_exception\"}}}},"
+            + "{\"create\":{\"status\":409,\"error\":{\"type\":\"version_conflict_engine_exception\"}}},"
+            + "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}},"
+            + "{\"index\":{\"error\":{\"type\":\"unavailable_shards_exception\"},\"status\":503}}"
+            + "]}";
+
+        // when
+        BulkResponse response = parse(json);
+
+        // then
+        assertThat(response.getTook(), is(42L));
+        assertThat(response.getItemCount(), is(5));
+        assertThat(response.getItemStatus(0), is(201));
+        assertThat(response.getItemError(0), is(nullValue()));
+        assertThat(response.getItemStatus(1), is(400));
+        assertThat(response.getItemError(1), is("{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse [n]\",\"caused_by\":{\"type\":\"number_format_exception\"}}"));
+        assertThat(response.getItemStatus(2), is(409));
+        assertThat(response.getItemStatus(3), is(429));
+        assertThat(response.getItemStatus(4), is(503));
+        assertThat(response.getItemError(4), is("{\"type\":\"unavailable_shards_exception\"}"));
+    }
+
+    @Test
+    public void should_parse_more_items_than_initially_allocated() throws Exception {
+        // given
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 1000; i++) {
+            json.append(i > 0 ? "," : "").append("{\"index\":{\"status\":").append(i == 999 ? 500 : 201).append("}}");
+        }
+        json.append("],\"took\":3}");
+
+        // when
+        BulkResponse response = parse(json.toString());
+
+        // then
+        assertThat(response.getItemCount(), is(1000));
+        assertThat(response.getItemStatus(998), is(201));
+        assertThat(response.getItemStatus(999), is(500));
+        assertThat(response.getTook(), is(3L));
+    }
+
+    @Test
+    public void should_return_no_items_for_unexpected_response() throws Exception {
+        // when
+        BulkResponse response = parse("[]");
+
+        // then
+        assertThat(response.getItemCount(), is(0));
+        assertThat(response.getTook(), is(-1L));
+    }
+
+    private static BulkResponse parse(String json) throws Exception {
+        return BulkResponse.parse(new JsonFactory(), new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+}
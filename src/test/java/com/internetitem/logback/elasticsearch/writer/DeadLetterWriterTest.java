@@ -0,0 +1,114 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import ch.qos.logback.classic.LoggerContext;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.internetitem.logback.elasticsearch.writer.StdErrWriterTest.smile;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class DeadLetterWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Settings settings;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(temporaryFolder.getRoot(), "dead-letters.json");
+        settings = new Settings();
+        settings.setDeadLetterFile(file.getPath());
+    }
+
+    @Test
+    public void should_write_one_line_per_rejected_document() throws Exception {
+        // given
+        DeadLetterWriter writer = writer();
+
+        // when
+        writer.add("{\"index\":{\"_index\":\"logs\"}}\n{\"n\":\"x\"}\n".getBytes("UTF-8"), 400, "{\"type\":\"mapper_parsing_exception\"}", null);
+        writer.add("{\"index\":{}}\n{\"message\":{\"a\":\n".getBytes("UTF-8"), 413, null, "Request Entity Too Large");
+        writer.close();
+
+        // then
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertThat(lines.size(), is(2));
+        Map<String, String> first = fields(lines.get(0));
+        assertThat(first.get("@timestamp").matches("\\d{4}-\\d{2}-\\d{2}T.*"), is(true));
+        assertThat(first.get("status"), is("400"));
+        assertThat(first.get("error"), is("{\"type\":\"mapper_parsing_exception\"}"));
+        assertThat(first.get("action"), is("{\"index\":{\"_index\":\"logs\"}}"));
+        assertThat(first.get("document"), is("{\"n\":\"x\"}"));
+        // A document that isn't valid JSON is kept as it was sent
+        Map<String, String> second = fields(lines.get(1));
+        assertThat(second.get("status"), is("413"));
+        assertThat(second.get("error"), is("Request Entity Too Large"));
+        assertThat(second.get("document"), is("{\"message\":{\"a\":"));
+    }
+
+    @Test
+    public void should_write_smile_documents_as_json() throws Exception {
+        // given
+        settings.setFormat(BulkFormat.SMILE);
+        DeadLetterWriter writer = writer();
+        ByteArrayOutputStream document = new ByteArrayOutputStream();
+        document.write(smile("{\"create\":{\"_index\":\"logs\"}}"));
+        document.write(smile("{\"n\":1.5,\"message\":\"smile\"}"));
+
+        // when
+        writer.add(document.toByteArray(), 400, "{\"type\":\"mapper_parsing_exception\"}", null);
+        writer.close();
+
+        // then
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertThat(lines.size(), is(1));
+        Map<String, String> line = fields(lines.get(0));
+        assertThat(line.get("action"), is("{\"create\":{\"_index\":\"logs\"}}"));
+        assertThat(line.get("document"), is("{\"n\":1.5,\"message\":\"smile\"}"));
+    }
+
+    private DeadLetterWriter writer() {
+        return new DeadLetterWriter(new ErrorReporter(settings, new LoggerContext()), settings);
+    }
+
+    // Each top level field of a JSON object, with its value as JSON (or as plain text, if it is a string)
+    private static Map<String, String> fields(String line) throws Exception {
+        Map<String, String> fields = new HashMap<>();
+        JsonFactory jf = new JsonFactory();
+        JsonParser parser = jf.createParser(line);
+        assertThat(parser.nextToken(), is(JsonToken.START_OBJECT));
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                fields.put(name, parser.getText());
+                continue;
+            }
+            StringWriter value = new StringWriter();
+            JsonGenerator gen = jf.createGenerator(value);
+            gen.copyCurrentStructure(parser);
+            gen.close();
+            fields.put(name, value.toString());
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,109 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import com.internetitem.logback.elasticsearch.config.Authentication;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ElasticsearchNodesTest {
+
+    @Mock
+    private ErrorReporter errorReporter;
+
+    private ElasticsearchNodes nodes;
+    private ElasticsearchNodes.Node first;
+    private ElasticsearchNodes.Node second;
+
+    @Before
+    public void setUp() throws Exception {
+        Settings settings = new Settings();
+        settings.setUrl(new URL("http://node1:9200/_bulk"));
+        settings.addUrl(new URL("http://node2:9200/_bulk"));
+        nodes = new ElasticsearchNodes(errorReporter, settings);
+        first = nodes.getNodes().get(0);
+        second = nodes.getNodes().get(1);
+    }
+
+    @Test
+    public void should_prefer_node_with_fewer_outstanding_requests() {
+        first.requestStarted();
+
+        assertThat(nodes.select(noNodes()), is(second));
+    }
+
+    @Test
+    public void should_prefer_faster_node() {
+        nodes.success(first, 500);
+        nodes.success(second, 20);
+
+        assertThat(nodes.select(noNodes()), is(second));
+    }
+
+    @Test
+    public void should_skip_penalized_node_until_it_recovers() {
+        nodes.failure(first);
+
+        assertThat(nodes.select(noNodes()), is(second));
+
+        nodes.success(first, 10);
+        nodes.success(second, 100);
+
+        assertThat(nodes.select(noNodes()), is(first));
+    }
+
+    @Test
+    public void should_fall_back_to_penalized_node_when_no_other_is_left() {
+        nodes.failure(first);
+
+        assertThat(nodes.select(Collections.singletonList(second)), is(first));
+    }
+
+    @Test
+    public void should_return_null_when_all_nodes_excluded() {
+        assertThat(nodes.select(nodes.getNodes()), is(nullValue()));
+    }
+
+    @Test
+    public void should_try_every_seed_when_authentication_fails_during_discovery() throws Exception {
+        // given
+        Settings settings = new Settings();
+        settings.setUrl(new URL("http://node1:9200/_bulk"));
+        settings.addUrl(new URL("http://node2:9200/_bulk"));
+        settings.setDiscoverNodes(true);
+        settings.setAuthentication(new Authentication() {
+            @Override
+            public void addAuth(HttpURLConnection urlConnection, String body) {
+                throw new IllegalStateException("no region");
+            }
+        });
+        ElasticsearchNodes discovering = new ElasticsearchNodes(errorReporter, settings);
+
+        // when
+        discovering.discoverIfDue();
+
+        // then
+        verify(errorReporter, times(2)).logWarning(contains("Failed to authenticate request: no region"));
+        assertThat(discovering.getNodes().size(), is(2));
+    }
+
+    private static List<ElasticsearchNodes.Node> noNodes() {
+        return Collections.emptyList();
+    }
+}
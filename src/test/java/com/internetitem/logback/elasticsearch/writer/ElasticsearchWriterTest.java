@@ -0,0 +1,455 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import com.internetitem.logback.elasticsearch.FakeElasticsearch;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.config.ExecutionMode;
+import com.internetitem.logback.elasticsearch.config.HttpRequestHeader;
+import com.internetitem.logback.elasticsearch.config.HttpRequestHeaders;
+import com.internetitem.logback.elasticsearch.config.PayloadSigningAuthentication;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import com.internetitem.logback.elasticsearch.util.WorkerThreadFactory;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.internetitem.logback.elasticsearch.FakeElasticsearch.documentCount;
+import static com.internetitem.logback.elasticsearch.FakeElasticsearch.items;
+import static com.internetitem.logback.elasticsearch.FakeElasticsearch.send;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ElasticsearchWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private ErrorReporter errorReporter;
+
+    private FakeElasticsearch server;
+    private Settings settings;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeElasticsearch();
+        settings = new Settings();
+        settings.setUrl(server.getUrl());
+        settings.setSleepTime(10);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void should_split_request_that_is_too_large() throws Exception {
+        // given
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                int documents = documentCount(body);
+                if (documents > 2) {
+                    send(exchange, 413, "{}");
+                } else {
+                    send(exchange, 200, items(documents, 201));
+                }
+            }
+        });
+        ElasticsearchWriter writer = writerWith(5);
+
+        // when
+        writer.sendData();
+
+        // then
+        assertThat(requestSizes(), is(list(5, 2, 3, 1, 2)));
+        assertThat(writer.hasPendingData(), is(false));
+        assertThat(writer.getRejectedCount(), is(0L));
+        assertThat(writer.getController().getBatchSize(), is(2));
+    }
+
+    @Test
+    public void should_not_cap_batch_size_when_a_single_document_is_too_large() throws Exception {
+        // given
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                if (new String(body, "UTF-8").contains("{\"n\":3}")) {
+                    send(exchange, 413, "{}");
+                } else {
+                    send(exchange, 200, items(documentCount(body), 201));
+                }
+            }
+        });
+        ElasticsearchWriter writer = writerWith(5);
+        writer.sendData();
+
+        // when
+        for (int i = 5; i < 9; i++) {
+            byte[] document = ("{\"index\":{}}\n{\"n\":" + i + "}\n").getBytes();
+            writer.write(document, 0, document.length);
+        }
+        writer.sendData();
+
+        // then
+        assertThat(requestSizes(), is(list(5, 2, 3, 1, 2, 1, 1, 4)));
+        assertThat(writer.hasPendingData(), is(false));
+        assertThat(writer.getRejectedCount(), is(1L));
+        assertThat(writer.getController().getBatchSize(), is(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void should_keep_documents_when_not_authorized() throws Exception {
+        // given
+        settings.addUrl(server.getUrl());
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                send(exchange, 403, "{}");
+            }
+        });
+        ElasticsearchWriter writer = writerWith(3);
+
+        // when
+        try {
+            writer.sendData();
+            fail("Expected the request to fail");
+        } catch (ElasticsearchWriter.NotAuthorizedException e) {
+            // expected
+        }
+
+        // then
+        assertThat(server.getBodies().size(), is(1));
+        assertThat(writer.hasPendingData(), is(true));
+        assertThat(writer.getRejectedCount(), is(0L));
+        // Not held against the node
+        verify(errorReporter, never()).logWarning(contains("failed"));
+    }
+
+    @Test
+    public void should_drop_request_that_is_malformed() throws Exception {
+        // given
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                send(exchange, 400, "{}");
+            }
+        });
+        ElasticsearchWriter writer = writerWith(3);
+
+        // when
+        writer.sendData();
+
+        // then
+        assertThat(writer.hasPendingData(), is(false));
+        assertThat(writer.getRejectedCount(), is(3L));
+    }
+
+    @Test
+    public void should_retry_request_that_is_not_found_on_another_node() throws Exception {
+        // given
+        settings.addUrl(server.getUrl());
+        final AtomicBoolean notFound = new AtomicBoolean();
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                if (notFound.compareAndSet(false, true)) {
+                    send(exchange, 404, "<html>Not Found</html>");
+                } else {
+                    send(exchange, 200, items(documentCount(body), 201));
+                }
+            }
+        });
+        ElasticsearchWriter writer = writerWith(3);
+
+        // when
+        writer.sendData();
+
+        // then
+        assertThat(requestSizes(), is(list(3, 3)));
+        assertThat(writer.hasPendingData(), is(false));
+        assertThat(writer.getRejectedCount(), is(0L));
+        verify(errorReporter).logWarning(contains("failed 1 time(s)"));
+    }
+
+    @Test
+    public void should_drop_items_that_are_not_found() throws Exception {
+        // given
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                send(exchange, 200, items(documentCount(body), 404));
+            }
+        });
+        ElasticsearchWriter writer = writerWith(2);
+
+        // when
+        writer.sendData();
+
+        // then
+        assertThat(writer.hasPendingData(), is(false));
+        assertThat(writer.getRejectedCount(), is(2L));
+    }
+
+    @Test
+    public void should_count_version_conflicts_as_done() throws Exception {
+        // given
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                send(exchange, 200, items(documentCount(body), 409));
+            }
+        });
+        ElasticsearchWriter writer = writerWith(3);
+
+        // when
+        writer.sendData();
+
+        // then
+        assertThat(writer.hasPendingData(), is(false));
+        assertThat(writer.getConflictCount(), is(3L));
+        assertThat(writer.getRejectedCount(), is(0L));
+    }
+
+    @Test
+    public void should_cap_retry_after_requested_by_elasticsearch() throws Exception {
+        // given
+        settings.setMaxRetries(3);
+        final AtomicBoolean throttled = new AtomicBoolean();
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                if (throttled.compareAndSet(false, true)) {
+                    exchange.getResponseHeaders().add("Retry-After", "3600");
+                    send(exchange, 429, "{}");
+                } else {
+                    send(exchange, 200, items(documentCount(body), 201));
+                }
+            }
+        });
+        ElasticsearchWriter writer = writerWith(2);
+        try {
+            writer.sendData();
+            fail("Expected the request to be throttled");
+        } catch (ElasticsearchWriter.ThrottledException e) {
+            // expected
+        }
+
+        // when
+        long retryDelay = writer.getController().getRetryDelay();
+        writer.sendData();
+
+        // then
+        assertThat(retryDelay <= 300, is(true));
+        assertThat(writer.hasPendingData(), is(false));
+        assertThat(server.getBodies().size(), is(2));
+    }
+
+    @Test
+    public void should_send_requests_of_a_round_in_parallel() throws Exception {
+        // given
+        settings.setAdaptiveBatching(true);
+        settings.setMinBatchSize(1);
+        settings.setMaxConcurrency(2);
+        ElasticsearchWriter writer = writerWith(5);
+
+        // when
+        writer.sendData();
+        writer.close();
+
+        // then
+        List<Integer> sizes = requestSizes();
+        Collections.sort(sizes);
+        assertThat(sizes, is(list(1, 2, 2)));
+        assertThat(writer.hasPendingData(), is(false));
+        assertThat(writer.getController().getConcurrency(), is(2));
+    }
+
+    @Test
+    public void should_send_smile_with_its_content_type() throws Exception {
+        // given
+        settings.setFormat(BulkFormat.SMILE);
+        HttpRequestHeaders headers = new HttpRequestHeaders();
+        HttpRequestHeader contentType = new HttpRequestHeader();
+        contentType.setName("Content-Type");
+        contentType.setValue("application/json");
+        headers.addHeader(contentType);
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                send(exchange, 200, items(1, 201));
+            }
+        });
+        ElasticsearchWriter writer = new ElasticsearchWriter(errorReporter, settings, headers, new WorkerThreadFactory(ExecutionMode.PLATFORM, errorReporter));
+        byte[] action = StdErrWriterTest.smile("{\"index\":{}}");
+        byte[] source = StdErrWriterTest.smile("{\"message\":\"smile\"}");
+        writer.write(action, 0, action.length);
+        writer.write(source, 0, source.length);
+
+        // when
+        writer.sendData();
+
+        // then
+        assertThat(server.getContentTypes(), is(Collections.singletonList("application/smile")));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(action);
+        expected.write(source);
+        assertThat(Arrays.equals(server.getBodies().get(0), expected.toByteArray()), is(true));
+        assertThat(writer.hasPendingData(), is(false));
+    }
+
+    @Test
+    public void should_count_only_aborted_streaming_request_as_node_failure() throws Exception {
+        // given
+        settings.addUrl(server.getUrl());
+        ElasticsearchWriter writer = writerWith(0);
+        List<ElasticsearchNodes.Node> none = Collections.emptyList();
+
+        // when
+        writer.openStreamingRequest(none).cancel();
+
+        // then
+        verify(errorReporter, never()).logWarning(contains("failed"));
+
+        // when
+        writer.openStreamingRequest(none).abort();
+
+        // then
+        verify(errorReporter).logWarning(contains("failed 1 time(s)"));
+    }
+
+    @Test
+    public void should_retry_only_items_that_may_succeed_later() throws Exception {
+        // given
+        File deadLetters = temporaryFolder.newFile("dead-letters.json");
+        settings.setDeadLetterFile(deadLetters.getPath());
+        final AtomicInteger requests = new AtomicInteger();
+        server.setResponder(new FakeElasticsearch.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, byte[] body) throws IOException {
+                if (requests.incrementAndGet() == 1) {
+                    send(exchange, 200, "{\"took\":1,\"errors\":true,\"items\":["
+                        + "{\"index\":{\"status\":201}},"
+                        + "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}},"
+                        + "{\"index\":{\"status\":409}},"
+                        + "{\"index\":{\"status\":429}},"
+                        + "{\"index\":{\"status\":403}},"
+                        + "{\"index\":{\"status\":503}}]}");
+                } else {
+                    send(exchange, 200, items(documentCount(body), 201));
+                }
+            }
+        });
+        ElasticsearchWriter writer = writerWith(6);
+
+        // when
+        try {
+            writer.sendData();
+            fail("Expected the retried items to be reported");
+        } catch (IOException e) {
+            // expected
+        }
+        writer.sendData();
+        writer.close();
+
+        // then
+        assertThat(requestSizes(), is(list(6, 3)));
+        assertThat(new String(server.getBodies().get(1), "UTF-8"), is("{\"index\":{}}\n{\"n\":3}\n{\"index\":{}}\n{\"n\":4}\n{\"index\":{}}\n{\"n\":5}\n"));
+        assertThat(writer.getRejectedCount(), is(1L));
+        assertThat(writer.getConflictCount(), is(1L));
+        assertThat(writer.getController().getThrottledCount(), is(1L));
+        assertThat(writer.hasPendingData(), is(false));
+        List<String> lines = Files.readAllLines(deadLetters.toPath());
+        assertThat(lines.size(), is(1));
+        assertThat(lines.get(0).contains("\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}"), is(true));
+        assertThat(lines.get(0).contains("\"document\":\"{\\\"n\\\":1}\""), is(true));
+    }
+
+    @Test
+    public void should_keep_documents_when_credentials_cannot_be_obtained() throws Exception {
+        // given
+        settings.addUrl(server.getUrl());
+        final AtomicBoolean failed = new AtomicBoolean();
+        settings.setAuthentication(new PayloadSigningAuthentication() {
+            @Override
+            public void addAuth(HttpURLConnection urlConnection, long contentLength, String payloadSha256) {
+                if (failed.compareAndSet(false, true)) {
+                    throw new IllegalStateException("no credentials");
+                }
+            }
+
+            @Override
+            public void addAuth(HttpURLConnection urlConnection, String body) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        ElasticsearchWriter writer = writerWith(2);
+
+        // when
+        try {
+            writer.sendData();
+            fail("Expected the request to fail");
+        } catch (ElasticsearchWriter.NotAuthorizedException e) {
+            // expected
+        }
+        boolean pending = writer.hasPendingData();
+        writer.sendData();
+
+        // then
+        assertThat(pending, is(true));
+        assertThat(requestSizes(), is(list(2)));
+        assertThat(writer.hasPendingData(), is(false));
+        // Not held against the node
+        verify(errorReporter, never()).logWarning(contains("failed"));
+    }
+
+    private ElasticsearchWriter writerWith(int documents) {
+        ElasticsearchWriter writer = new ElasticsearchWriter(errorReporter, settings, null, new WorkerThreadFactory(ExecutionMode.PLATFORM, errorReporter));
+        for (int i = 0; i < documents; i++) {
+            byte[] document = ("{\"index\":{}}\n{\"n\":" + i + "}\n").getBytes();
+            writer.write(document, 0, document.length);
+        }
+        return writer;
+    }
+
+    private List<Integer> requestSizes() {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (byte[] body : server.getBodies()) {
+            sizes.add(documentCount(body));
+        }
+        return sizes;
+    }
+
+    private static List<Integer> list(Integer... values) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (Integer value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+}
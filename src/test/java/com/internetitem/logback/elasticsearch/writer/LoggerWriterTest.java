@@ -0,0 +1,82 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static com.internetitem.logback.elasticsearch.writer.StdErrWriterTest.smile;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LoggerWriterTest {
+
+    private static final String LOGGER_NAME = "es-logger-test";
+
+    private Logger logger;
+    private ListAppender<ILoggingEvent> appender;
+
+    @Before
+    public void setUp() {
+        logger = (Logger) LoggerFactory.getLogger(LOGGER_NAME);
+        appender = new ListAppender<ILoggingEvent>();
+        appender.start();
+        logger.addAppender(appender);
+    }
+
+    @After
+    public void tearDown() {
+        logger.detachAppender(appender);
+    }
+
+    @Test
+    public void should_log_unreadable_smile_record_and_move_on() throws Exception {
+        // given
+        LoggerWriter writer = new LoggerWriter(LOGGER_NAME, BulkFormat.SMILE);
+        byte[] unreadable = { 0x3a, 0x29, 0x0a, 0x00, (byte) 0xf8, (byte) 0xfe, (byte) 0xFF };
+        write(writer, smile("{\"index\":{}}"));
+        write(writer, unreadable);
+        write(writer, smile("{\"index\":{}}"));
+        write(writer, smile("{\"message\":\"after\"}"));
+
+        // when
+        writer.sendData();
+
+        // then
+        assertThat(appender.list.size(), is(2));
+        assertThat(appender.list.get(0).getMessage().startsWith("{\"index\":{}}\n{\"unreadable_smile\":\""), is(true));
+        assertThat(appender.list.get(1).getMessage(), is("{\"index\":{}}\n{\"message\":\"after\"}\n"));
+        assertThat(writer.hasPendingData(), is(false));
+    }
+
+    @Test
+    public void should_log_one_record_per_document_and_keep_incomplete_document_for_next_batch() throws Exception {
+        // given
+        LoggerWriter writer = new LoggerWriter(LOGGER_NAME, BulkFormat.JSON);
+        write(writer, "{\"index\":{}}\n{\"n\":0}\n{\"index\":{}}\n{\"n\":1}\n{\"index\":{}}\n{\"n\"".getBytes("UTF-8"));
+
+        // when
+        writer.sendData();
+        int logged = appender.list.size();
+        boolean pending = writer.hasPendingData();
+        write(writer, ":2}\n".getBytes("UTF-8"));
+        writer.sendData();
+
+        // then
+        assertThat(logged, is(2));
+        assertThat(pending, is(false));
+        assertThat(appender.list.size(), is(3));
+        assertThat(appender.list.get(0).getMessage(), is("{\"index\":{}}\n{\"n\":0}\n"));
+        assertThat(appender.list.get(1).getMessage(), is("{\"index\":{}}\n{\"n\":1}\n"));
+        assertThat(appender.list.get(2).getMessage(), is("{\"index\":{}}\n{\"n\":2}\n"));
+        assertThat(writer.hasPendingData(), is(false));
+    }
+
+    private static void write(LoggerWriter writer, byte[] bytes) {
+        writer.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,119 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import com.internetitem.logback.elasticsearch.config.FileFormat;
+import com.internetitem.logback.elasticsearch.config.Settings;
+import com.internetitem.logback.elasticsearch.util.ErrorReporter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RollingFileWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private ErrorReporter errorReporter;
+
+    private Settings settings;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(temporaryFolder.getRoot(), "events.json");
+        settings = new Settings();
+        settings.setFile(file.getPath());
+    }
+
+    @Test
+    public void should_roll_over_once_the_file_exceeds_max_file_size() throws Exception {
+        // given
+        settings.setMaxFileSize(40);
+        RollingFileWriter writer = new RollingFileWriter(errorReporter, settings);
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            write(writer, document(i));
+            writer.sendData();
+        }
+        writer.close();
+
+        // then
+        assertThat(read(file), is(document(2)));
+        assertThat(read(rolledOver()), is(document(0) + document(1)));
+        verify(errorReporter).logInfo(contains("Rolled over"));
+    }
+
+    @Test
+    public void should_roll_over_once_the_file_has_been_open_for_rollover_interval() throws Exception {
+        // given
+        settings.setFileRolloverInterval(20);
+        RollingFileWriter writer = new RollingFileWriter(errorReporter, settings);
+        write(writer, document(0));
+        writer.sendData();
+        Thread.sleep(50);
+
+        // when
+        write(writer, document(1));
+        writer.sendData();
+        writer.close();
+
+        // then
+        assertThat(read(file), is(document(1)));
+        assertThat(read(rolledOver()), is(document(0)));
+    }
+
+    @Test
+    public void should_write_only_complete_documents_without_action_lines() throws Exception {
+        // given
+        settings.setFileFormat(FileFormat.DOCUMENTS);
+        RollingFileWriter writer = new RollingFileWriter(errorReporter, settings);
+        write(writer, document(0) + document(1) + "{\"index\":{}}\n");
+
+        // when
+        writer.sendData();
+        String partial = read(file);
+        boolean pending = writer.hasPendingData();
+        write(writer, "{\"n\":2}\n");
+        writer.sendData();
+        writer.close();
+
+        // then
+        assertThat(partial, is("{\"n\":0}\n{\"n\":1}\n"));
+        assertThat(pending, is(true));
+        assertThat(read(file), is("{\"n\":0}\n{\"n\":1}\n{\"n\":2}\n"));
+        assertThat(writer.hasPendingData(), is(false));
+    }
+
+    private File rolledOver() {
+        File[] files = temporaryFolder.getRoot().listFiles();
+        assertThat(files.length, is(2));
+        return files[0].equals(file) ? files[1] : files[0];
+    }
+
+    private static String document(int n) {
+        return "{\"index\":{}}\n{\"n\":" + n + "}\n";
+    }
+
+    private static void write(RollingFileWriter writer, String data) throws Exception {
+        byte[] bytes = data.getBytes("UTF-8");
+        writer.write(bytes, 0, bytes.length);
+    }
+
+    private static String read(File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+}
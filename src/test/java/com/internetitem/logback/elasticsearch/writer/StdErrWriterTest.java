@@ -0,0 +1,72 @@
+package com.internetitem.logback.elasticsearch.writer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.internetitem.logback.elasticsearch.config.BulkFormat;
+import com.internetitem.logback.elasticsearch.util.SmileSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StdErrWriterTest {
+
+    private PrintStream originalErr;
+    private ByteArrayOutputStream err;
+
+    @Before
+    public void setUp() {
+        originalErr = System.err;
+        err = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(err, true));
+    }
+
+    @After
+    public void tearDown() {
+        System.setErr(originalErr);
+    }
+
+    @Test
+    public void should_print_smile_as_json_and_skip_past_unreadable_record() throws Exception {
+        // given
+        StdErrWriter writer = new StdErrWriter(BulkFormat.SMILE);
+        byte[] unreadable = { 0x3a, 0x29, 0x0a, 0x00, (byte) 0xf8, (byte) 0xfe, (byte) 0xFF };
+        write(writer, smile("{\"index\":{}}"));
+        write(writer, unreadable);
+        write(writer, smile("{\"index\":{}}"));
+        write(writer, smile("{\"message\":\"after\"}"));
+
+        // when
+        writer.sendData();
+
+        // then
+        String[] lines = err.toString("UTF-8").split("\n");
+        assertThat(lines.length, is(4));
+        assertThat(lines[0], is("{\"index\":{}}"));
+        assertThat(lines[1].startsWith("{\"unreadable_smile\":\""), is(true));
+        assertThat(lines[3], is("{\"message\":\"after\"}"));
+        assertThat(writer.hasPendingData(), is(false));
+    }
+
+    private static void write(StdErrWriter writer, byte[] record) {
+        writer.write(record, 0, record.length);
+    }
+
+    // A single SMILE record followed by the separator, the way the publisher writes it
+    static byte[] smile(String json) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator gen = SmileSupport.getFactory().createGenerator(out);
+        JsonParser parser = new JsonFactory().createParser(json);
+        parser.nextToken();
+        gen.copyCurrentStructure(parser);
+        gen.close();
+        out.write(BulkFormat.SMILE.getSeparator());
+        return out.toByteArray();
+    }
+}